@@ -0,0 +1,568 @@
+package foundation.db;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DBBeanRowMapper maps rows to JavaBeans without reflection on the per-row path. The
+ * first row seen resolves, once, which column feeds which public setter; each setter is
+ * then bound through <code>LambdaMetafactory</code> to a small functional interface that
+ * takes the primitive value directly, so <code>getInt</code>, <code>getLong</code>, ...
+ * results reach the bean without boxing. Setters that <code>LambdaMetafactory</code>
+ * cannot link from this package, such as public setters inherited from a non-public
+ * class or beans from another class loader, are called through a method handle instead.
+ * <p/>
+ * Columns are matched to setters by name, ignoring case and underscores, so
+ * <code>FIRST_NAME</code> feeds <code>setFirstName</code>. Unmatched columns and setters
+ * are ignored. The target class needs a public no-argument constructor.
+ * <p/>
+ * Mappers are cached per SQL fingerprint and target class; use <code>forQuery</code>
+ * rather than the constructor. The column labels of each new result set are checked
+ * against those the setters were resolved for, so a <code>select *</code> still maps
+ * correctly after the table changes.
+ */
+public class DBBeanRowMapper<T> implements DBRowMapper<T> {
+
+    private static final Logger log = Logger.getLogger(DBBeanRowMapper.class);
+
+    private static final int MAX_CACHED_MAPPERS = 5000;
+    private static final ConcurrentHashMap<Key, DBBeanRowMapper<?>> cache = new ConcurrentHashMap<>();
+
+    private final Class<T> type;
+    private final Instantiator instantiator;
+    private volatile Resolution resolution = null;
+
+    DBBeanRowMapper(Class<T> type) {
+        this.type = type;
+        this.instantiator = instantiator(type);
+    }
+
+    /**
+     * Returns the mapper for rows of the given SQL mapped to the given class.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> DBBeanRowMapper<T> forQuery(String sql, Class<T> type) {
+        Key key = new Key(DBSqlFingerprints.getInstance().lookup(sql).getId(), type);
+        DBBeanRowMapper<?> mapper = cache.get(key);
+        if (mapper == null) {
+            if (cache.size() >= MAX_CACHED_MAPPERS) cache.clear();
+            DBBeanRowMapper<T> created = new DBBeanRowMapper<>(type);
+            mapper = cache.putIfAbsent(key, created);
+            if (mapper == null) mapper = created;
+        }
+        return (DBBeanRowMapper<T>) mapper;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T mapRow(ResultSet rs) throws SQLException {
+        Resolution current = resolution;
+        if (current == null || current.resultSet.get() != rs) {
+            current = resolve(rs, current);
+            resolution = current;
+        }
+        T bean = (T) instantiator.newInstance();
+        for (Binding binding : current.bindings) {
+            binding.bind(rs, bean);
+        }
+        return bean;
+    }
+
+    /**
+     * Resolves the bindings for a result set not seen before, reusing the previous ones
+     * when its column labels are the same.
+     */
+    private Resolution resolve(ResultSet rs, Resolution previous) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        String[] labels = new String[metaData.getColumnCount()];
+        for (int column = 1; column <= labels.length; column++) {
+            labels[column - 1] = metaData.getColumnLabel(column);
+        }
+        if (previous != null && Arrays.equals(previous.labels, labels)) {
+            return new Resolution(rs, labels, previous.bindings);
+        }
+        return new Resolution(rs, labels, bind(labels));
+    }
+
+    private Binding[] bind(String[] labels) throws SQLException {
+        Map<String, Method> setters = new HashMap<>();
+        for (Method method : type.getMethods()) {
+            if (method.getName().length() > 3 && method.getName().startsWith("set")
+                    && method.getParameterTypes().length == 1 && !Modifier.isStatic(method.getModifiers())) {
+                setters.put(normalize(method.getName().substring(3)), method);
+            }
+        }
+        List<Binding> resolved = new ArrayList<>();
+        for (int column = 1; column <= labels.length; column++) {
+            Method setter = setters.remove(normalize(labels[column - 1]));
+            if (setter != null) {
+                resolved.add(binding(column, setter));
+            }
+        }
+        if (log.isDebugEnabled()) log.debug("Resolved " + resolved.size() + " columns for " + type.getName());
+        return resolved.toArray(new Binding[resolved.size()]);
+    }
+
+    private static String normalize(String name) {
+        return name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+
+    private Binding binding(int column, Method setter) throws SQLException {
+        Class<?> parameter = setter.getParameterTypes()[0];
+        if (parameter == int.class) return new IntBinding(column, (IntSetter) setter(setter, IntSetter.class, int.class));
+        if (parameter == long.class) return new LongBinding(column, (LongSetter) setter(setter, LongSetter.class, long.class));
+        if (parameter == double.class) return new DoubleBinding(column, (DoubleSetter) setter(setter, DoubleSetter.class, double.class));
+        if (parameter == float.class) return new FloatBinding(column, (FloatSetter) setter(setter, FloatSetter.class, float.class));
+        if (parameter == boolean.class) return new BooleanBinding(column, (BooleanSetter) setter(setter, BooleanSetter.class, boolean.class));
+        if (parameter == short.class) return new ShortBinding(column, (ShortSetter) setter(setter, ShortSetter.class, short.class));
+        if (parameter == byte.class) return new ByteBinding(column, (ByteSetter) setter(setter, ByteSetter.class, byte.class));
+        ObjectSetter objectSetter = (ObjectSetter) setter(setter, ObjectSetter.class, Object.class);
+        if (parameter == String.class) return new StringBinding(column, objectSetter);
+        if (parameter == Timestamp.class || parameter == java.util.Date.class) return new TimestampBinding(column, objectSetter);
+        if (parameter == Date.class) return new DateBinding(column, objectSetter);
+        if (parameter == Time.class) return new TimeBinding(column, objectSetter);
+        if (parameter == BigDecimal.class) return new BigDecimalBinding(column, objectSetter);
+        if (parameter == byte[].class) return new BytesBinding(column, objectSetter);
+        return new ObjectBinding(column, objectSetter, parameter);
+    }
+
+    /**
+     * Spins up an implementation of the given setter interface that calls the setter
+     * directly, the same way the compiler links a method reference. The generated class
+     * resolves the bean and declaring classes by name from this package, so when either
+     * is not reachable from here the setter is called through its method handle instead.
+     */
+    private Object setter(Method method, Class<?> setterInterface, Class<?> valueType) throws SQLException {
+        MethodHandle target;
+        try {
+            // looked up on the bean class, which is public, rather than on the class that
+            // declares the setter, which need not be
+            target = MethodHandles.publicLookup().findVirtual(type, method.getName(),
+                    MethodType.methodType(method.getReturnType(), method.getParameterTypes()));
+        } catch (ReflectiveOperationException e) {
+            throw new SQLException("Cannot bind setter " + method, e);
+        }
+        if (!linkable(type) || !linkable(method.getDeclaringClass())) {
+            if (log.isDebugEnabled()) log.debug("Calling " + method + " through a method handle");
+            return handleSetter(target.asType(MethodType.methodType(void.class, Object.class, valueType)), valueType);
+        }
+        try {
+            CallSite site = LambdaMetafactory.metafactory(MethodHandles.lookup(), "set",
+                    MethodType.methodType(setterInterface),
+                    MethodType.methodType(void.class, Object.class, valueType),
+                    target,
+                    MethodType.methodType(void.class, type, method.getParameterTypes()[0]));
+            return site.getTarget().invoke();
+        } catch (Throwable t) {
+            if (log.isDebugEnabled()) log.debug("Calling " + method + " through a method handle: " + t);
+            return handleSetter(target.asType(MethodType.methodType(void.class, Object.class, valueType)), valueType);
+        }
+    }
+
+    private static Object handleSetter(final MethodHandle target, Class<?> valueType) {
+        if (valueType == int.class) return (IntSetter) (bean, value) -> {
+            try {
+                target.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        };
+        if (valueType == long.class) return (LongSetter) (bean, value) -> {
+            try {
+                target.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        };
+        if (valueType == double.class) return (DoubleSetter) (bean, value) -> {
+            try {
+                target.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        };
+        if (valueType == float.class) return (FloatSetter) (bean, value) -> {
+            try {
+                target.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        };
+        if (valueType == boolean.class) return (BooleanSetter) (bean, value) -> {
+            try {
+                target.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        };
+        if (valueType == short.class) return (ShortSetter) (bean, value) -> {
+            try {
+                target.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        };
+        if (valueType == byte.class) return (ByteSetter) (bean, value) -> {
+            try {
+                target.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        };
+        return (ObjectSetter) (bean, value) -> {
+            try {
+                target.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        };
+    }
+
+    private static Instantiator instantiator(Class<?> type) {
+        MethodHandle constructor;
+        try {
+            constructor = MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException(type.getName() + " needs a public no-argument constructor", e);
+        }
+        if (linkable(type)) {
+            try {
+                CallSite site = LambdaMetafactory.metafactory(MethodHandles.lookup(), "newInstance",
+                        MethodType.methodType(Instantiator.class),
+                        MethodType.methodType(Object.class),
+                        constructor,
+                        MethodType.methodType(type));
+                return (Instantiator) site.getTarget().invoke();
+            } catch (Throwable t) {
+                if (log.isDebugEnabled()) log.debug("Cannot link a constructor for " + type.getName() + ": " + t);
+            }
+        }
+        final MethodHandle generic = constructor.asType(MethodType.methodType(Object.class));
+        return () -> {
+            try {
+                return generic.invokeExact();
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        };
+    }
+
+    /**
+     * Whether code in this package can name the given class: it is public and this
+     * class loader resolves its name to the same class.
+     */
+    private static boolean linkable(Class<?> c) {
+        if (!Modifier.isPublic(c.getModifiers())) return false;
+        try {
+            return Class.forName(c.getName(), false, DBBeanRowMapper.class.getClassLoader()) == c;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        throw new UndeclaredThrowableException(t);
+    }
+
+    // Functional interfaces implemented by LambdaMetafactory; one per primitive so values stay unboxed
+
+    interface Instantiator {
+        Object newInstance();
+    }
+
+    interface IntSetter {
+        void set(Object bean, int value);
+    }
+
+    interface LongSetter {
+        void set(Object bean, long value);
+    }
+
+    interface DoubleSetter {
+        void set(Object bean, double value);
+    }
+
+    interface FloatSetter {
+        void set(Object bean, float value);
+    }
+
+    interface BooleanSetter {
+        void set(Object bean, boolean value);
+    }
+
+    interface ShortSetter {
+        void set(Object bean, short value);
+    }
+
+    interface ByteSetter {
+        void set(Object bean, byte value);
+    }
+
+    interface ObjectSetter {
+        void set(Object bean, Object value);
+    }
+
+    /**
+     * The bindings for the column labels of a result set, and the last result set they
+     * were checked against.
+     */
+    private static final class Resolution {
+        final WeakReference<ResultSet> resultSet;
+        final String[] labels;
+        final Binding[] bindings;
+
+        Resolution(ResultSet resultSet, String[] labels, Binding[] bindings) {
+            this.resultSet = new WeakReference<>(resultSet);
+            this.labels = labels;
+            this.bindings = bindings;
+        }
+    }
+
+    private abstract static class Binding {
+        final int column;
+
+        Binding(int column) {
+            this.column = column;
+        }
+
+        abstract void bind(ResultSet rs, Object bean) throws SQLException;
+    }
+
+    private static final class IntBinding extends Binding {
+        private final IntSetter setter;
+
+        IntBinding(int column, IntSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getInt(column));
+        }
+    }
+
+    private static final class LongBinding extends Binding {
+        private final LongSetter setter;
+
+        LongBinding(int column, LongSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getLong(column));
+        }
+    }
+
+    private static final class DoubleBinding extends Binding {
+        private final DoubleSetter setter;
+
+        DoubleBinding(int column, DoubleSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getDouble(column));
+        }
+    }
+
+    private static final class FloatBinding extends Binding {
+        private final FloatSetter setter;
+
+        FloatBinding(int column, FloatSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getFloat(column));
+        }
+    }
+
+    private static final class BooleanBinding extends Binding {
+        private final BooleanSetter setter;
+
+        BooleanBinding(int column, BooleanSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getBoolean(column));
+        }
+    }
+
+    private static final class ShortBinding extends Binding {
+        private final ShortSetter setter;
+
+        ShortBinding(int column, ShortSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getShort(column));
+        }
+    }
+
+    private static final class ByteBinding extends Binding {
+        private final ByteSetter setter;
+
+        ByteBinding(int column, ByteSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getByte(column));
+        }
+    }
+
+    private static final class StringBinding extends Binding {
+        private final ObjectSetter setter;
+
+        StringBinding(int column, ObjectSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getString(column));
+        }
+    }
+
+    private static final class TimestampBinding extends Binding {
+        private final ObjectSetter setter;
+
+        TimestampBinding(int column, ObjectSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getTimestamp(column));
+        }
+    }
+
+    private static final class DateBinding extends Binding {
+        private final ObjectSetter setter;
+
+        DateBinding(int column, ObjectSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getDate(column));
+        }
+    }
+
+    private static final class TimeBinding extends Binding {
+        private final ObjectSetter setter;
+
+        TimeBinding(int column, ObjectSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getTime(column));
+        }
+    }
+
+    private static final class BigDecimalBinding extends Binding {
+        private final ObjectSetter setter;
+
+        BigDecimalBinding(int column, ObjectSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getBigDecimal(column));
+        }
+    }
+
+    private static final class BytesBinding extends Binding {
+        private final ObjectSetter setter;
+
+        BytesBinding(int column, ObjectSetter setter) {
+            super(column);
+            this.setter = setter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getBytes(column));
+        }
+    }
+
+    /**
+     * Boxed numbers and anything else: <code>getObject(column, type)</code>, which keeps
+     * SQL NULL as <code>null</code>.
+     */
+    private static final class ObjectBinding extends Binding {
+        private final ObjectSetter setter;
+        private final Class<?> parameter;
+
+        ObjectBinding(int column, ObjectSetter setter, Class<?> parameter) {
+            super(column);
+            this.setter = setter;
+            this.parameter = parameter;
+        }
+
+        void bind(ResultSet rs, Object bean) throws SQLException {
+            setter.set(bean, rs.getObject(column, parameter));
+        }
+    }
+
+    private static final class Key {
+        private final int fingerprint;
+        private final Class<?> type;
+
+        Key(int fingerprint, Class<?> type) {
+            this.fingerprint = fingerprint;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return fingerprint == other.fingerprint && type == other.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fingerprint + type.hashCode();
+        }
+    }
+}
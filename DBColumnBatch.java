@@ -0,0 +1,214 @@
+package foundation.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * DBColumnBatch binds column-oriented data to a <code>PreparedStatement</code> batch
+ * without boxing. Each parameter is a primitive array holding one value per row, with an
+ * optional null bitmap, and rows are bound with <code>setInt</code>, <code>setLong</code>,
+ * <code>setDouble</code> and <code>setString</code>. No objects are allocated per row,
+ * so the same batch and arrays can be refilled and run again:
+ * <pre>
+ * DBColumnBatch batch = new DBColumnBatch(3, 1000);
+ * batch.setInts(1, orderIds, null);
+ * batch.setLongs(2, amounts, amountNulls);
+ * batch.setDoubles(3, rates, null);
+ * long updated = batch.execute(stmt, rowCount);
+ * </pre>
+ * Rows are sent with <code>executeBatch</code> every <code>chunkSize</code> rows, which
+ * keeps the driver's batch buffer bounded. Committing is left to the caller.
+ * <p/>
+ * A null bitmap holds one bit per row: bit <code>row % 64</code> of word
+ * <code>row / 64</code> is set when the value in that row is SQL NULL.
+ */
+public class DBColumnBatch {
+
+    private static final byte UNSET = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte STRING = 4;
+
+    private final int chunkSize;
+    private final byte[] kinds;
+    private final int[] sqlTypes;
+    private final int[][] ints;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final String[][] strings;
+    private final long[][] nulls;
+
+    /**
+     * @param columns   the number of statement parameters
+     * @param chunkSize the number of rows sent per <code>executeBatch</code>
+     */
+    public DBColumnBatch(int columns, int chunkSize) {
+        if (columns < 1) throw new IllegalArgumentException("columns must be at least 1");
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be at least 1");
+        this.chunkSize = chunkSize;
+        kinds = new byte[columns];
+        sqlTypes = new int[columns];
+        ints = new int[columns][];
+        longs = new long[columns][];
+        doubles = new double[columns][];
+        strings = new String[columns][];
+        nulls = new long[columns][];
+    }
+
+    /**
+     * Returns an empty null bitmap for the given number of rows.
+     */
+    public static long[] newNullBitmap(int rows) {
+        return new long[(rows + 63) >>> 6];
+    }
+
+    public static void setNull(long[] bitmap, int row) {
+        bitmap[row >>> 6] |= 1L << row;
+    }
+
+    public static boolean isNull(long[] bitmap, int row) {
+        return bitmap != null && (bitmap[row >>> 6] & (1L << row)) != 0;
+    }
+
+    public void setInts(int parameterIndex, int[] values, long[] nullBitmap) {
+        if (values == null) throw new IllegalArgumentException("Values cannot be null");
+        int i = set(parameterIndex, INT, Types.INTEGER, nullBitmap);
+        ints[i] = values;
+    }
+
+    public void setLongs(int parameterIndex, long[] values, long[] nullBitmap) {
+        if (values == null) throw new IllegalArgumentException("Values cannot be null");
+        int i = set(parameterIndex, LONG, Types.BIGINT, nullBitmap);
+        longs[i] = values;
+    }
+
+    public void setDoubles(int parameterIndex, double[] values, long[] nullBitmap) {
+        if (values == null) throw new IllegalArgumentException("Values cannot be null");
+        int i = set(parameterIndex, DOUBLE, Types.DOUBLE, nullBitmap);
+        doubles[i] = values;
+    }
+
+    /**
+     * Strings are already objects; <code>null</code> elements are bound as SQL NULL.
+     */
+    public void setStrings(int parameterIndex, String[] values) {
+        if (values == null) throw new IllegalArgumentException("Values cannot be null");
+        int i = set(parameterIndex, STRING, Types.VARCHAR, null);
+        strings[i] = values;
+    }
+
+    private int set(int parameterIndex, byte kind, int sqlType, long[] nullBitmap) {
+        if (parameterIndex < 1 || parameterIndex > kinds.length) {
+            throw new IllegalArgumentException("Parameter index " + parameterIndex + " out of range 1.." + kinds.length);
+        }
+        int i = parameterIndex - 1;
+        ints[i] = null;
+        longs[i] = null;
+        doubles[i] = null;
+        strings[i] = null;
+        kinds[i] = kind;
+        sqlTypes[i] = sqlType;
+        nulls[i] = nullBitmap;
+        return i;
+    }
+
+    /**
+     * Binds and executes the first <code>rows</code> rows. If binding or a chunk fails,
+     * the rows added but not yet sent are cleared from the statement's batch, so the
+     * statement can be reused; chunks already sent stay executed.
+     *
+     * @return the total update count, not counting rows whose count the driver does not
+     *         report
+     * @throws IllegalArgumentException if <code>rows</code> is negative
+     * @throws IllegalStateException    if a parameter has no column or a column is shorter
+     *                                  than <code>rows</code>
+     */
+    public long execute(PreparedStatement stmt, int rows) throws SQLException {
+        check(rows);
+        long updated = 0;
+        int pending = 0;
+        try {
+            for (int row = 0; row < rows; row++) {
+                bindRow(stmt, row);
+                stmt.addBatch();
+                if (++pending == chunkSize) {
+                    updated += sum(stmt.executeBatch());
+                    pending = 0;
+                }
+            }
+            if (pending > 0) updated += sum(stmt.executeBatch());
+        } catch (SQLException | RuntimeException e) {
+            try {
+                stmt.clearBatch();
+            } catch (SQLException clear) {
+                e.addSuppressed(clear);
+            }
+            throw e;
+        }
+        return updated;
+    }
+
+    private void bindRow(PreparedStatement stmt, int row) throws SQLException {
+        for (int i = 0; i < kinds.length; i++) {
+            int index = i + 1;
+            if (isNull(nulls[i], row)) {
+                stmt.setNull(index, sqlTypes[i]);
+                continue;
+            }
+            switch (kinds[i]) {
+                case INT:
+                    stmt.setInt(index, ints[i][row]);
+                    break;
+                case LONG:
+                    stmt.setLong(index, longs[i][row]);
+                    break;
+                case DOUBLE:
+                    stmt.setDouble(index, doubles[i][row]);
+                    break;
+                default:
+                    String value = strings[i][row];
+                    if (value == null) {
+                        stmt.setNull(index, Types.VARCHAR);
+                    } else {
+                        stmt.setString(index, value);
+                    }
+            }
+        }
+    }
+
+    private void check(int rows) {
+        if (rows < 0) throw new IllegalArgumentException("rows must not be negative");
+        for (int i = 0; i < kinds.length; i++) {
+            int length;
+            switch (kinds[i]) {
+                case UNSET:
+                    throw new IllegalStateException("Parameter " + (i + 1) + " has no column");
+                case INT:
+                    length = ints[i].length;
+                    break;
+                case LONG:
+                    length = longs[i].length;
+                    break;
+                case DOUBLE:
+                    length = doubles[i].length;
+                    break;
+                default:
+                    length = strings[i].length;
+            }
+            if (length < rows || (nulls[i] != null && (long) nulls[i].length << 6 < rows)) {
+                throw new IllegalStateException("Column of parameter " + (i + 1) + " is shorter than " + rows + " rows");
+            }
+        }
+    }
+
+    private static long sum(int[] counts) {
+        long total = 0;
+        for (int count : counts) {
+            // SUCCESS_NO_INFO is negative and is not counted
+            if (count >= 0) total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,45 @@
+package foundation.db;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event for calls on a <code>DBConnection</code> that go to the
+ * database: fetching the SPID, <code>commit</code>, <code>rollback</code>,
+ * <code>isClosed</code> and <code>isValid</code>. Only calls slower than the threshold
+ * are recorded; when the event is disabled the cost is a single allocation that the
+ * JIT removes.
+ */
+@Name("foundation.db.Connection")
+@Label("DB Connection Call")
+@Category({"Database", "Connection"})
+@Description("A call on a DBConnection that waits on the database")
+@Threshold("10 ms")
+public class DBConnectionEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("SPID")
+    String spid;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    /**
+     * Commits the event if it ran past the threshold.
+     */
+    void end(String operation, String spid, boolean succeeded) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.spid = spid;
+            this.succeeded = succeeded;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package foundation.db;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DBConnectionWatchdog aborts connections whose calls hang far beyond their query
+ * timeout, which happens when the socket under a connection dies half way and the
+ * driver's own timeout never fires. Callers bracket a blocking call with
+ * <code>watch</code>:
+ * <pre>
+ * DBConnectionWatchdog.Call call = DBConnectionWatchdog.getInstance().watch(connection, "executeBatch", timeoutSecs);
+ * try {
+ *     stmt.executeBatch();
+ * } finally {
+ *     call.close();
+ * }
+ * </pre>
+ * A single scanner thread checks the calls in flight. A call still running
+ * <code>graceMillis</code> after its timeout has its connection marked bad and
+ * aborted through <code>Connection.abort</code>, which fails the stuck call so that the
+ * thread gets back control and the pool discards the connection when it is returned.
+ * <p/>
+ * As a second line of defence, a watched connection without a network timeout of its own
+ * gets one of the call timeout plus the grace period for the duration of the call. Drivers
+ * that support neither <code>setNetworkTimeout</code> nor <code>abort</code> have their
+ * connection closed instead. Calls with a timeout of 0 or less have no limit and are not
+ * watched.
+ * <p/>
+ * Aborts run on a small, bounded executor shared by all connections.
+ */
+public final class DBConnectionWatchdog {
+
+    private static final Logger log = Logger.getLogger(DBConnectionWatchdog.class);
+
+    private static final int NETWORK_TIMEOUT_UNSUPPORTED = -1;
+
+    private static final DBConnectionWatchdog instance = new DBConnectionWatchdog();
+
+    private final Set<Call> inFlight = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor abortExecutor;
+    private final ScheduledExecutorService scanner;
+    private volatile long graceMillis = 30 * 1000L;
+
+    private final AtomicLong aborted = new AtomicLong();
+
+    private DBConnectionWatchdog() {
+        abortExecutor = new ThreadPoolExecutor(4, 4, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(256), new WatchdogThreadFactory("DBConnectionWatchdog-abort"));
+        abortExecutor.allowCoreThreadTimeOut(true);
+        scanner = Executors.newSingleThreadScheduledExecutor(new WatchdogThreadFactory("DBConnectionWatchdog"));
+        scanner.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                scan();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public static DBConnectionWatchdog getInstance() {
+        return instance;
+    }
+
+    public long getGraceMillis() {
+        return graceMillis;
+    }
+
+    /**
+     * How long past its timeout a call may run before its connection is aborted.
+     * Defaults to 30 seconds.
+     */
+    public void setGraceMillis(long graceMillis) {
+        if (graceMillis < 0) throw new IllegalArgumentException("graceMillis must not be negative");
+        this.graceMillis = graceMillis;
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getAbortedCount() {
+        return aborted.get();
+    }
+
+    /**
+     * Starts watching a blocking call on the connection. The returned call must be
+     * closed when the connection returns, normally in a <code>finally</code> block.
+     *
+     * @param operation   a short description for the log
+     * @param timeoutSecs the timeout the call was given, such as its query timeout; 0 or
+     *                    less means no limit, and the call is not watched
+     */
+    public Call watch(DBConnection connection, String operation, int timeoutSecs) {
+        if (timeoutSecs <= 0) return new Call(connection, operation, Long.MAX_VALUE, false);
+        long budgetMillis = timeoutSecs * 1000L + graceMillis;
+        boolean networkTimeoutSet = applyNetworkTimeout(connection, budgetMillis);
+        Call call = new Call(connection, operation, System.currentTimeMillis() + budgetMillis, networkTimeoutSet);
+        inFlight.add(call);
+        return call;
+    }
+
+    /**
+     * Sets a network timeout on a connection that has none, and reports whether it did.
+     */
+    private boolean applyNetworkTimeout(DBConnection connection, long budgetMillis) {
+        if (connection.getAppliedNetworkTimeout() == NETWORK_TIMEOUT_UNSUPPORTED) return false;
+        try {
+            // a timeout the connection already has, set by the caller or the driver
+            // configuration, is left alone
+            if (connection.getNetworkTimeout() != 0) return false;
+            connection.setNetworkTimeout(abortExecutor, (int) Math.min(Integer.MAX_VALUE, budgetMillis));
+            return true;
+        } catch (SQLFeatureNotSupportedException | AbstractMethodError e) {
+            connection.setAppliedNetworkTimeout(NETWORK_TIMEOUT_UNSUPPORTED);
+        } catch (SQLException e) {
+            log.warn("Could not set network timeout on connection spid " + connection.getSpid(), e);
+            connection.setAppliedNetworkTimeout(NETWORK_TIMEOUT_UNSUPPORTED);
+        }
+        return false;
+    }
+
+    private void restoreNetworkTimeout(DBConnection connection) {
+        try {
+            connection.setNetworkTimeout(abortExecutor, 0);
+        } catch (SQLException e) {
+            // the pool must not hand out a connection still carrying the watch timeout
+            log.warn("Could not clear network timeout on connection spid " + connection.getSpid(), e);
+            connection.setBadConnection(true);
+        }
+    }
+
+    private void scan() {
+        long now = System.currentTimeMillis();
+        for (Call call : inFlight) {
+            if (call.deadline < now && !call.aborted) {
+                abort(call, now);
+            }
+        }
+    }
+
+    private void abort(Call stuck, long now) {
+        final DBConnection connection = stuck.connection;
+        // every other call on the same connection fails with it
+        for (Call call : inFlight) {
+            if (call.connection == connection) call.aborted = true;
+        }
+        aborted.incrementAndGet();
+        log.warn("Aborting connection spid " + connection.getSpid() + " stuck in " + stuck.operation + " for "
+                + (now - stuck.started) + " ms on thread " + stuck.thread.getName());
+        connection.setBadConnection(true);
+        DBConnectionEvent event = new DBConnectionEvent();
+        event.begin();
+        boolean succeeded = false;
+        try {
+            connection.abort(abortExecutor);
+            succeeded = true;
+        } catch (SQLException | AbstractMethodError | RejectedExecutionException e) {
+            log.warn("Could not abort connection spid " + connection.getSpid() + ", closing it instead", e);
+            closeLater(connection);
+        } finally {
+            event.end("abort", connection.getSpid(), succeeded);
+        }
+    }
+
+    private void closeLater(final DBConnection connection) {
+        try {
+            abortExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        log.error("Could not close stuck connection spid " + connection.getSpid(), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.error("Watchdog executor is saturated; stuck connection spid " + connection.getSpid() + " left open", e);
+        }
+    }
+
+    /**
+     * A watched call in flight. Closing it stops watching and clears the network timeout
+     * set for it; it is safe to close twice.
+     */
+    public final class Call implements AutoCloseable {
+        private final DBConnection connection;
+        private final String operation;
+        private final Thread thread = Thread.currentThread();
+        private final long started = System.currentTimeMillis();
+        private final long deadline;
+        private final boolean networkTimeoutSet;
+        private volatile boolean aborted = false;
+
+        Call(DBConnection connection, String operation, long deadline, boolean networkTimeoutSet) {
+            this.connection = connection;
+            this.operation = operation;
+            this.deadline = deadline;
+            this.networkTimeoutSet = networkTimeoutSet;
+        }
+
+        /**
+         * Whether the watchdog aborted the connection while this call was running.
+         */
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        public void close() {
+            if (inFlight.remove(this) && networkTimeoutSet && !aborted) {
+                restoreNetworkTimeout(connection);
+            }
+        }
+    }
+
+    private static class WatchdogThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        WatchdogThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,803 @@
+package foundation.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.RowIdLifetime;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+
+/**
+ * A <code>DatabaseMetaData</code> answered from the <code>DBMetaDataCache</code> of the
+ * connection's pool. Catalog queries return read-only, scrollable result sets over the
+ * cached rows; their <code>getStatement()</code> is <code>null</code>. Calls that depend on
+ * the state of this connection (<code>isReadOnly</code>, <code>getUserName</code>) go to
+ * the driver.
+ */
+public class DBDatabaseMetaData implements DatabaseMetaData {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final DBMetaDataCache cache;
+    private final DatabaseMetaData delegate;
+    private final DBConnection connection;
+
+    public DBDatabaseMetaData(DBMetaDataCache cache, DatabaseMetaData delegate, DBConnection connection) {
+        this.cache = cache;
+        this.delegate = delegate;
+        this.connection = connection;
+    }
+
+    public DBMetaDataCache getCache() {
+        return cache;
+    }
+
+    // Per-connection calls
+
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    public String getUserName() throws SQLException {
+        return delegate.getUserName();
+    }
+
+    public boolean isReadOnly() throws SQLException {
+        return delegate.isReadOnly();
+    }
+
+    public int getDriverMajorVersion() {
+        return delegate.getDriverMajorVersion();
+    }
+
+    public int getDriverMinorVersion() {
+        return delegate.getDriverMinorVersion();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        return delegate.unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+
+    // Catalog queries
+
+    private ResultSet resultSet(String method, Object[] args, String[] tables, DBMetaDataCache.Fetch<ResultSet> fetch) throws SQLException {
+        return cache.resultSet(method, args, scope(args), tables, getSearchStringEscape(), fetch);
+    }
+
+    /**
+     * The catalog the connection is in, and its schema when the call leaves the schema
+     * out. Drivers answer a <code>null</code> catalog or schema from them, so calls that
+     * look the same after <code>setCatalog</code> or <code>USE</code> may not be.
+     */
+    private Object scope(Object[] args) throws SQLException {
+        String catalog = connection.getCatalog();
+        if (args.length < 2 || args[1] != null) return catalog;
+        String schema;
+        try {
+            schema = connection.getSchema();
+        } catch (SQLFeatureNotSupportedException | AbstractMethodError e) {
+            schema = null;
+        }
+        return Arrays.asList(catalog, schema);
+    }
+
+    public ResultSet getProcedures(String catalog, String schemaPattern, String procedureNamePattern) throws SQLException {
+        return resultSet("getProcedures", new Object[]{catalog, schemaPattern, procedureNamePattern}, null,
+                () -> delegate.getProcedures(catalog, schemaPattern, procedureNamePattern));
+    }
+
+    public ResultSet getProcedureColumns(String catalog, String schemaPattern, String procedureNamePattern, String columnNamePattern) throws SQLException {
+        return resultSet("getProcedureColumns", new Object[]{catalog, schemaPattern, procedureNamePattern, columnNamePattern}, null,
+                () -> delegate.getProcedureColumns(catalog, schemaPattern, procedureNamePattern, columnNamePattern));
+    }
+
+    public ResultSet getTables(String catalog, String schemaPattern, String tableNamePattern, String[] types) throws SQLException {
+        return resultSet("getTables", new Object[]{catalog, schemaPattern, tableNamePattern, types}, new String[]{tableNamePattern},
+                () -> delegate.getTables(catalog, schemaPattern, tableNamePattern, types));
+    }
+
+    public ResultSet getSchemas() throws SQLException {
+        return resultSet("getSchemas", NO_ARGS, null, () -> delegate.getSchemas());
+    }
+
+    public ResultSet getSchemas(String catalog, String schemaPattern) throws SQLException {
+        return resultSet("getSchemas", new Object[]{catalog, schemaPattern}, null,
+                () -> delegate.getSchemas(catalog, schemaPattern));
+    }
+
+    public ResultSet getCatalogs() throws SQLException {
+        return resultSet("getCatalogs", NO_ARGS, null, () -> delegate.getCatalogs());
+    }
+
+    public ResultSet getTableTypes() throws SQLException {
+        return resultSet("getTableTypes", NO_ARGS, null, () -> delegate.getTableTypes());
+    }
+
+    public ResultSet getColumns(String catalog, String schemaPattern, String tableNamePattern, String columnNamePattern) throws SQLException {
+        return resultSet("getColumns", new Object[]{catalog, schemaPattern, tableNamePattern, columnNamePattern}, new String[]{tableNamePattern},
+                () -> delegate.getColumns(catalog, schemaPattern, tableNamePattern, columnNamePattern));
+    }
+
+    public ResultSet getColumnPrivileges(String catalog, String schema, String table, String columnNamePattern) throws SQLException {
+        return resultSet("getColumnPrivileges", new Object[]{catalog, schema, table, columnNamePattern}, new String[]{table},
+                () -> delegate.getColumnPrivileges(catalog, schema, table, columnNamePattern));
+    }
+
+    public ResultSet getTablePrivileges(String catalog, String schemaPattern, String tableNamePattern) throws SQLException {
+        return resultSet("getTablePrivileges", new Object[]{catalog, schemaPattern, tableNamePattern}, new String[]{tableNamePattern},
+                () -> delegate.getTablePrivileges(catalog, schemaPattern, tableNamePattern));
+    }
+
+    public ResultSet getBestRowIdentifier(String catalog, String schema, String table, int scope, boolean nullable) throws SQLException {
+        return resultSet("getBestRowIdentifier", new Object[]{catalog, schema, table, scope, nullable}, new String[]{table},
+                () -> delegate.getBestRowIdentifier(catalog, schema, table, scope, nullable));
+    }
+
+    public ResultSet getVersionColumns(String catalog, String schema, String table) throws SQLException {
+        return resultSet("getVersionColumns", new Object[]{catalog, schema, table}, new String[]{table},
+                () -> delegate.getVersionColumns(catalog, schema, table));
+    }
+
+    public ResultSet getPrimaryKeys(String catalog, String schema, String table) throws SQLException {
+        return resultSet("getPrimaryKeys", new Object[]{catalog, schema, table}, new String[]{table},
+                () -> delegate.getPrimaryKeys(catalog, schema, table));
+    }
+
+    public ResultSet getImportedKeys(String catalog, String schema, String table) throws SQLException {
+        return resultSet("getImportedKeys", new Object[]{catalog, schema, table}, new String[]{table},
+                () -> delegate.getImportedKeys(catalog, schema, table));
+    }
+
+    public ResultSet getExportedKeys(String catalog, String schema, String table) throws SQLException {
+        return resultSet("getExportedKeys", new Object[]{catalog, schema, table}, new String[]{table},
+                () -> delegate.getExportedKeys(catalog, schema, table));
+    }
+
+    public ResultSet getCrossReference(String parentCatalog, String parentSchema, String parentTable,
+                                       String foreignCatalog, String foreignSchema, String foreignTable) throws SQLException {
+        return resultSet("getCrossReference",
+                new Object[]{parentCatalog, parentSchema, parentTable, foreignCatalog, foreignSchema, foreignTable},
+                new String[]{parentTable, foreignTable},
+                () -> delegate.getCrossReference(parentCatalog, parentSchema, parentTable, foreignCatalog, foreignSchema, foreignTable));
+    }
+
+    public ResultSet getTypeInfo() throws SQLException {
+        return resultSet("getTypeInfo", NO_ARGS, null, () -> delegate.getTypeInfo());
+    }
+
+    public ResultSet getIndexInfo(String catalog, String schema, String table, boolean unique, boolean approximate) throws SQLException {
+        return resultSet("getIndexInfo", new Object[]{catalog, schema, table, unique, approximate}, new String[]{table},
+                () -> delegate.getIndexInfo(catalog, schema, table, unique, approximate));
+    }
+
+    public ResultSet getUDTs(String catalog, String schemaPattern, String typeNamePattern, int[] types) throws SQLException {
+        return resultSet("getUDTs", new Object[]{catalog, schemaPattern, typeNamePattern, types}, null,
+                () -> delegate.getUDTs(catalog, schemaPattern, typeNamePattern, types));
+    }
+
+    public ResultSet getSuperTypes(String catalog, String schemaPattern, String typeNamePattern) throws SQLException {
+        return resultSet("getSuperTypes", new Object[]{catalog, schemaPattern, typeNamePattern}, null,
+                () -> delegate.getSuperTypes(catalog, schemaPattern, typeNamePattern));
+    }
+
+    public ResultSet getSuperTables(String catalog, String schemaPattern, String tableNamePattern) throws SQLException {
+        return resultSet("getSuperTables", new Object[]{catalog, schemaPattern, tableNamePattern}, new String[]{tableNamePattern},
+                () -> delegate.getSuperTables(catalog, schemaPattern, tableNamePattern));
+    }
+
+    public ResultSet getAttributes(String catalog, String schemaPattern, String typeNamePattern, String attributeNamePattern) throws SQLException {
+        return resultSet("getAttributes", new Object[]{catalog, schemaPattern, typeNamePattern, attributeNamePattern}, null,
+                () -> delegate.getAttributes(catalog, schemaPattern, typeNamePattern, attributeNamePattern));
+    }
+
+    public ResultSet getClientInfoProperties() throws SQLException {
+        return resultSet("getClientInfoProperties", NO_ARGS, null, () -> delegate.getClientInfoProperties());
+    }
+
+    public ResultSet getFunctions(String catalog, String schemaPattern, String functionNamePattern) throws SQLException {
+        return resultSet("getFunctions", new Object[]{catalog, schemaPattern, functionNamePattern}, null,
+                () -> delegate.getFunctions(catalog, schemaPattern, functionNamePattern));
+    }
+
+    public ResultSet getFunctionColumns(String catalog, String schemaPattern, String functionNamePattern, String columnNamePattern) throws SQLException {
+        return resultSet("getFunctionColumns", new Object[]{catalog, schemaPattern, functionNamePattern, columnNamePattern}, null,
+                () -> delegate.getFunctionColumns(catalog, schemaPattern, functionNamePattern, columnNamePattern));
+    }
+
+    public ResultSet getPseudoColumns(String catalog, String schemaPattern, String tableNamePattern, String columnNamePattern) throws SQLException {
+        return resultSet("getPseudoColumns", new Object[]{catalog, schemaPattern, tableNamePattern, columnNamePattern}, new String[]{tableNamePattern},
+                () -> delegate.getPseudoColumns(catalog, schemaPattern, tableNamePattern, columnNamePattern));
+    }
+
+    // Database and driver properties, fixed for the life of the pool
+
+    public boolean allProceduresAreCallable() throws SQLException {
+        return (Boolean) cache.property("allProceduresAreCallable", NO_ARGS, () -> delegate.allProceduresAreCallable());
+    }
+
+    public boolean allTablesAreSelectable() throws SQLException {
+        return (Boolean) cache.property("allTablesAreSelectable", NO_ARGS, () -> delegate.allTablesAreSelectable());
+    }
+
+    public String getURL() throws SQLException {
+        return (String) cache.property("getURL", NO_ARGS, () -> delegate.getURL());
+    }
+
+    public boolean nullsAreSortedHigh() throws SQLException {
+        return (Boolean) cache.property("nullsAreSortedHigh", NO_ARGS, () -> delegate.nullsAreSortedHigh());
+    }
+
+    public boolean nullsAreSortedLow() throws SQLException {
+        return (Boolean) cache.property("nullsAreSortedLow", NO_ARGS, () -> delegate.nullsAreSortedLow());
+    }
+
+    public boolean nullsAreSortedAtStart() throws SQLException {
+        return (Boolean) cache.property("nullsAreSortedAtStart", NO_ARGS, () -> delegate.nullsAreSortedAtStart());
+    }
+
+    public boolean nullsAreSortedAtEnd() throws SQLException {
+        return (Boolean) cache.property("nullsAreSortedAtEnd", NO_ARGS, () -> delegate.nullsAreSortedAtEnd());
+    }
+
+    public String getDatabaseProductName() throws SQLException {
+        return (String) cache.property("getDatabaseProductName", NO_ARGS, () -> delegate.getDatabaseProductName());
+    }
+
+    public String getDatabaseProductVersion() throws SQLException {
+        return (String) cache.property("getDatabaseProductVersion", NO_ARGS, () -> delegate.getDatabaseProductVersion());
+    }
+
+    public String getDriverName() throws SQLException {
+        return (String) cache.property("getDriverName", NO_ARGS, () -> delegate.getDriverName());
+    }
+
+    public String getDriverVersion() throws SQLException {
+        return (String) cache.property("getDriverVersion", NO_ARGS, () -> delegate.getDriverVersion());
+    }
+
+    public boolean usesLocalFiles() throws SQLException {
+        return (Boolean) cache.property("usesLocalFiles", NO_ARGS, () -> delegate.usesLocalFiles());
+    }
+
+    public boolean usesLocalFilePerTable() throws SQLException {
+        return (Boolean) cache.property("usesLocalFilePerTable", NO_ARGS, () -> delegate.usesLocalFilePerTable());
+    }
+
+    public boolean supportsMixedCaseIdentifiers() throws SQLException {
+        return (Boolean) cache.property("supportsMixedCaseIdentifiers", NO_ARGS, () -> delegate.supportsMixedCaseIdentifiers());
+    }
+
+    public boolean storesUpperCaseIdentifiers() throws SQLException {
+        return (Boolean) cache.property("storesUpperCaseIdentifiers", NO_ARGS, () -> delegate.storesUpperCaseIdentifiers());
+    }
+
+    public boolean storesLowerCaseIdentifiers() throws SQLException {
+        return (Boolean) cache.property("storesLowerCaseIdentifiers", NO_ARGS, () -> delegate.storesLowerCaseIdentifiers());
+    }
+
+    public boolean storesMixedCaseIdentifiers() throws SQLException {
+        return (Boolean) cache.property("storesMixedCaseIdentifiers", NO_ARGS, () -> delegate.storesMixedCaseIdentifiers());
+    }
+
+    public boolean supportsMixedCaseQuotedIdentifiers() throws SQLException {
+        return (Boolean) cache.property("supportsMixedCaseQuotedIdentifiers", NO_ARGS, () -> delegate.supportsMixedCaseQuotedIdentifiers());
+    }
+
+    public boolean storesUpperCaseQuotedIdentifiers() throws SQLException {
+        return (Boolean) cache.property("storesUpperCaseQuotedIdentifiers", NO_ARGS, () -> delegate.storesUpperCaseQuotedIdentifiers());
+    }
+
+    public boolean storesLowerCaseQuotedIdentifiers() throws SQLException {
+        return (Boolean) cache.property("storesLowerCaseQuotedIdentifiers", NO_ARGS, () -> delegate.storesLowerCaseQuotedIdentifiers());
+    }
+
+    public boolean storesMixedCaseQuotedIdentifiers() throws SQLException {
+        return (Boolean) cache.property("storesMixedCaseQuotedIdentifiers", NO_ARGS, () -> delegate.storesMixedCaseQuotedIdentifiers());
+    }
+
+    public String getIdentifierQuoteString() throws SQLException {
+        return (String) cache.property("getIdentifierQuoteString", NO_ARGS, () -> delegate.getIdentifierQuoteString());
+    }
+
+    public String getSQLKeywords() throws SQLException {
+        return (String) cache.property("getSQLKeywords", NO_ARGS, () -> delegate.getSQLKeywords());
+    }
+
+    public String getNumericFunctions() throws SQLException {
+        return (String) cache.property("getNumericFunctions", NO_ARGS, () -> delegate.getNumericFunctions());
+    }
+
+    public String getStringFunctions() throws SQLException {
+        return (String) cache.property("getStringFunctions", NO_ARGS, () -> delegate.getStringFunctions());
+    }
+
+    public String getSystemFunctions() throws SQLException {
+        return (String) cache.property("getSystemFunctions", NO_ARGS, () -> delegate.getSystemFunctions());
+    }
+
+    public String getTimeDateFunctions() throws SQLException {
+        return (String) cache.property("getTimeDateFunctions", NO_ARGS, () -> delegate.getTimeDateFunctions());
+    }
+
+    public String getSearchStringEscape() throws SQLException {
+        return (String) cache.property("getSearchStringEscape", NO_ARGS, () -> delegate.getSearchStringEscape());
+    }
+
+    public String getExtraNameCharacters() throws SQLException {
+        return (String) cache.property("getExtraNameCharacters", NO_ARGS, () -> delegate.getExtraNameCharacters());
+    }
+
+    public boolean supportsAlterTableWithAddColumn() throws SQLException {
+        return (Boolean) cache.property("supportsAlterTableWithAddColumn", NO_ARGS, () -> delegate.supportsAlterTableWithAddColumn());
+    }
+
+    public boolean supportsAlterTableWithDropColumn() throws SQLException {
+        return (Boolean) cache.property("supportsAlterTableWithDropColumn", NO_ARGS, () -> delegate.supportsAlterTableWithDropColumn());
+    }
+
+    public boolean supportsColumnAliasing() throws SQLException {
+        return (Boolean) cache.property("supportsColumnAliasing", NO_ARGS, () -> delegate.supportsColumnAliasing());
+    }
+
+    public boolean nullPlusNonNullIsNull() throws SQLException {
+        return (Boolean) cache.property("nullPlusNonNullIsNull", NO_ARGS, () -> delegate.nullPlusNonNullIsNull());
+    }
+
+    public boolean supportsConvert() throws SQLException {
+        return (Boolean) cache.property("supportsConvert", NO_ARGS, () -> delegate.supportsConvert());
+    }
+
+    public boolean supportsConvert(int fromType, int toType) throws SQLException {
+        return (Boolean) cache.property("supportsConvert", new Object[]{fromType, toType}, () -> delegate.supportsConvert(fromType, toType));
+    }
+
+    public boolean supportsTableCorrelationNames() throws SQLException {
+        return (Boolean) cache.property("supportsTableCorrelationNames", NO_ARGS, () -> delegate.supportsTableCorrelationNames());
+    }
+
+    public boolean supportsDifferentTableCorrelationNames() throws SQLException {
+        return (Boolean) cache.property("supportsDifferentTableCorrelationNames", NO_ARGS, () -> delegate.supportsDifferentTableCorrelationNames());
+    }
+
+    public boolean supportsExpressionsInOrderBy() throws SQLException {
+        return (Boolean) cache.property("supportsExpressionsInOrderBy", NO_ARGS, () -> delegate.supportsExpressionsInOrderBy());
+    }
+
+    public boolean supportsOrderByUnrelated() throws SQLException {
+        return (Boolean) cache.property("supportsOrderByUnrelated", NO_ARGS, () -> delegate.supportsOrderByUnrelated());
+    }
+
+    public boolean supportsGroupBy() throws SQLException {
+        return (Boolean) cache.property("supportsGroupBy", NO_ARGS, () -> delegate.supportsGroupBy());
+    }
+
+    public boolean supportsGroupByUnrelated() throws SQLException {
+        return (Boolean) cache.property("supportsGroupByUnrelated", NO_ARGS, () -> delegate.supportsGroupByUnrelated());
+    }
+
+    public boolean supportsGroupByBeyondSelect() throws SQLException {
+        return (Boolean) cache.property("supportsGroupByBeyondSelect", NO_ARGS, () -> delegate.supportsGroupByBeyondSelect());
+    }
+
+    public boolean supportsLikeEscapeClause() throws SQLException {
+        return (Boolean) cache.property("supportsLikeEscapeClause", NO_ARGS, () -> delegate.supportsLikeEscapeClause());
+    }
+
+    public boolean supportsMultipleResultSets() throws SQLException {
+        return (Boolean) cache.property("supportsMultipleResultSets", NO_ARGS, () -> delegate.supportsMultipleResultSets());
+    }
+
+    public boolean supportsMultipleTransactions() throws SQLException {
+        return (Boolean) cache.property("supportsMultipleTransactions", NO_ARGS, () -> delegate.supportsMultipleTransactions());
+    }
+
+    public boolean supportsNonNullableColumns() throws SQLException {
+        return (Boolean) cache.property("supportsNonNullableColumns", NO_ARGS, () -> delegate.supportsNonNullableColumns());
+    }
+
+    public boolean supportsMinimumSQLGrammar() throws SQLException {
+        return (Boolean) cache.property("supportsMinimumSQLGrammar", NO_ARGS, () -> delegate.supportsMinimumSQLGrammar());
+    }
+
+    public boolean supportsCoreSQLGrammar() throws SQLException {
+        return (Boolean) cache.property("supportsCoreSQLGrammar", NO_ARGS, () -> delegate.supportsCoreSQLGrammar());
+    }
+
+    public boolean supportsExtendedSQLGrammar() throws SQLException {
+        return (Boolean) cache.property("supportsExtendedSQLGrammar", NO_ARGS, () -> delegate.supportsExtendedSQLGrammar());
+    }
+
+    public boolean supportsANSI92EntryLevelSQL() throws SQLException {
+        return (Boolean) cache.property("supportsANSI92EntryLevelSQL", NO_ARGS, () -> delegate.supportsANSI92EntryLevelSQL());
+    }
+
+    public boolean supportsANSI92IntermediateSQL() throws SQLException {
+        return (Boolean) cache.property("supportsANSI92IntermediateSQL", NO_ARGS, () -> delegate.supportsANSI92IntermediateSQL());
+    }
+
+    public boolean supportsANSI92FullSQL() throws SQLException {
+        return (Boolean) cache.property("supportsANSI92FullSQL", NO_ARGS, () -> delegate.supportsANSI92FullSQL());
+    }
+
+    public boolean supportsIntegrityEnhancementFacility() throws SQLException {
+        return (Boolean) cache.property("supportsIntegrityEnhancementFacility", NO_ARGS, () -> delegate.supportsIntegrityEnhancementFacility());
+    }
+
+    public boolean supportsOuterJoins() throws SQLException {
+        return (Boolean) cache.property("supportsOuterJoins", NO_ARGS, () -> delegate.supportsOuterJoins());
+    }
+
+    public boolean supportsFullOuterJoins() throws SQLException {
+        return (Boolean) cache.property("supportsFullOuterJoins", NO_ARGS, () -> delegate.supportsFullOuterJoins());
+    }
+
+    public boolean supportsLimitedOuterJoins() throws SQLException {
+        return (Boolean) cache.property("supportsLimitedOuterJoins", NO_ARGS, () -> delegate.supportsLimitedOuterJoins());
+    }
+
+    public String getSchemaTerm() throws SQLException {
+        return (String) cache.property("getSchemaTerm", NO_ARGS, () -> delegate.getSchemaTerm());
+    }
+
+    public String getProcedureTerm() throws SQLException {
+        return (String) cache.property("getProcedureTerm", NO_ARGS, () -> delegate.getProcedureTerm());
+    }
+
+    public String getCatalogTerm() throws SQLException {
+        return (String) cache.property("getCatalogTerm", NO_ARGS, () -> delegate.getCatalogTerm());
+    }
+
+    public boolean isCatalogAtStart() throws SQLException {
+        return (Boolean) cache.property("isCatalogAtStart", NO_ARGS, () -> delegate.isCatalogAtStart());
+    }
+
+    public String getCatalogSeparator() throws SQLException {
+        return (String) cache.property("getCatalogSeparator", NO_ARGS, () -> delegate.getCatalogSeparator());
+    }
+
+    public boolean supportsSchemasInDataManipulation() throws SQLException {
+        return (Boolean) cache.property("supportsSchemasInDataManipulation", NO_ARGS, () -> delegate.supportsSchemasInDataManipulation());
+    }
+
+    public boolean supportsSchemasInProcedureCalls() throws SQLException {
+        return (Boolean) cache.property("supportsSchemasInProcedureCalls", NO_ARGS, () -> delegate.supportsSchemasInProcedureCalls());
+    }
+
+    public boolean supportsSchemasInTableDefinitions() throws SQLException {
+        return (Boolean) cache.property("supportsSchemasInTableDefinitions", NO_ARGS, () -> delegate.supportsSchemasInTableDefinitions());
+    }
+
+    public boolean supportsSchemasInIndexDefinitions() throws SQLException {
+        return (Boolean) cache.property("supportsSchemasInIndexDefinitions", NO_ARGS, () -> delegate.supportsSchemasInIndexDefinitions());
+    }
+
+    public boolean supportsSchemasInPrivilegeDefinitions() throws SQLException {
+        return (Boolean) cache.property("supportsSchemasInPrivilegeDefinitions", NO_ARGS, () -> delegate.supportsSchemasInPrivilegeDefinitions());
+    }
+
+    public boolean supportsCatalogsInDataManipulation() throws SQLException {
+        return (Boolean) cache.property("supportsCatalogsInDataManipulation", NO_ARGS, () -> delegate.supportsCatalogsInDataManipulation());
+    }
+
+    public boolean supportsCatalogsInProcedureCalls() throws SQLException {
+        return (Boolean) cache.property("supportsCatalogsInProcedureCalls", NO_ARGS, () -> delegate.supportsCatalogsInProcedureCalls());
+    }
+
+    public boolean supportsCatalogsInTableDefinitions() throws SQLException {
+        return (Boolean) cache.property("supportsCatalogsInTableDefinitions", NO_ARGS, () -> delegate.supportsCatalogsInTableDefinitions());
+    }
+
+    public boolean supportsCatalogsInIndexDefinitions() throws SQLException {
+        return (Boolean) cache.property("supportsCatalogsInIndexDefinitions", NO_ARGS, () -> delegate.supportsCatalogsInIndexDefinitions());
+    }
+
+    public boolean supportsCatalogsInPrivilegeDefinitions() throws SQLException {
+        return (Boolean) cache.property("supportsCatalogsInPrivilegeDefinitions", NO_ARGS, () -> delegate.supportsCatalogsInPrivilegeDefinitions());
+    }
+
+    public boolean supportsPositionedDelete() throws SQLException {
+        return (Boolean) cache.property("supportsPositionedDelete", NO_ARGS, () -> delegate.supportsPositionedDelete());
+    }
+
+    public boolean supportsPositionedUpdate() throws SQLException {
+        return (Boolean) cache.property("supportsPositionedUpdate", NO_ARGS, () -> delegate.supportsPositionedUpdate());
+    }
+
+    public boolean supportsSelectForUpdate() throws SQLException {
+        return (Boolean) cache.property("supportsSelectForUpdate", NO_ARGS, () -> delegate.supportsSelectForUpdate());
+    }
+
+    public boolean supportsStoredProcedures() throws SQLException {
+        return (Boolean) cache.property("supportsStoredProcedures", NO_ARGS, () -> delegate.supportsStoredProcedures());
+    }
+
+    public boolean supportsSubqueriesInComparisons() throws SQLException {
+        return (Boolean) cache.property("supportsSubqueriesInComparisons", NO_ARGS, () -> delegate.supportsSubqueriesInComparisons());
+    }
+
+    public boolean supportsSubqueriesInExists() throws SQLException {
+        return (Boolean) cache.property("supportsSubqueriesInExists", NO_ARGS, () -> delegate.supportsSubqueriesInExists());
+    }
+
+    public boolean supportsSubqueriesInIns() throws SQLException {
+        return (Boolean) cache.property("supportsSubqueriesInIns", NO_ARGS, () -> delegate.supportsSubqueriesInIns());
+    }
+
+    public boolean supportsSubqueriesInQuantifieds() throws SQLException {
+        return (Boolean) cache.property("supportsSubqueriesInQuantifieds", NO_ARGS, () -> delegate.supportsSubqueriesInQuantifieds());
+    }
+
+    public boolean supportsCorrelatedSubqueries() throws SQLException {
+        return (Boolean) cache.property("supportsCorrelatedSubqueries", NO_ARGS, () -> delegate.supportsCorrelatedSubqueries());
+    }
+
+    public boolean supportsUnion() throws SQLException {
+        return (Boolean) cache.property("supportsUnion", NO_ARGS, () -> delegate.supportsUnion());
+    }
+
+    public boolean supportsUnionAll() throws SQLException {
+        return (Boolean) cache.property("supportsUnionAll", NO_ARGS, () -> delegate.supportsUnionAll());
+    }
+
+    public boolean supportsOpenCursorsAcrossCommit() throws SQLException {
+        return (Boolean) cache.property("supportsOpenCursorsAcrossCommit", NO_ARGS, () -> delegate.supportsOpenCursorsAcrossCommit());
+    }
+
+    public boolean supportsOpenCursorsAcrossRollback() throws SQLException {
+        return (Boolean) cache.property("supportsOpenCursorsAcrossRollback", NO_ARGS, () -> delegate.supportsOpenCursorsAcrossRollback());
+    }
+
+    public boolean supportsOpenStatementsAcrossCommit() throws SQLException {
+        return (Boolean) cache.property("supportsOpenStatementsAcrossCommit", NO_ARGS, () -> delegate.supportsOpenStatementsAcrossCommit());
+    }
+
+    public boolean supportsOpenStatementsAcrossRollback() throws SQLException {
+        return (Boolean) cache.property("supportsOpenStatementsAcrossRollback", NO_ARGS, () -> delegate.supportsOpenStatementsAcrossRollback());
+    }
+
+    public int getMaxBinaryLiteralLength() throws SQLException {
+        return (Integer) cache.property("getMaxBinaryLiteralLength", NO_ARGS, () -> delegate.getMaxBinaryLiteralLength());
+    }
+
+    public int getMaxCharLiteralLength() throws SQLException {
+        return (Integer) cache.property("getMaxCharLiteralLength", NO_ARGS, () -> delegate.getMaxCharLiteralLength());
+    }
+
+    public int getMaxColumnNameLength() throws SQLException {
+        return (Integer) cache.property("getMaxColumnNameLength", NO_ARGS, () -> delegate.getMaxColumnNameLength());
+    }
+
+    public int getMaxColumnsInGroupBy() throws SQLException {
+        return (Integer) cache.property("getMaxColumnsInGroupBy", NO_ARGS, () -> delegate.getMaxColumnsInGroupBy());
+    }
+
+    public int getMaxColumnsInIndex() throws SQLException {
+        return (Integer) cache.property("getMaxColumnsInIndex", NO_ARGS, () -> delegate.getMaxColumnsInIndex());
+    }
+
+    public int getMaxColumnsInOrderBy() throws SQLException {
+        return (Integer) cache.property("getMaxColumnsInOrderBy", NO_ARGS, () -> delegate.getMaxColumnsInOrderBy());
+    }
+
+    public int getMaxColumnsInSelect() throws SQLException {
+        return (Integer) cache.property("getMaxColumnsInSelect", NO_ARGS, () -> delegate.getMaxColumnsInSelect());
+    }
+
+    public int getMaxColumnsInTable() throws SQLException {
+        return (Integer) cache.property("getMaxColumnsInTable", NO_ARGS, () -> delegate.getMaxColumnsInTable());
+    }
+
+    public int getMaxConnections() throws SQLException {
+        return (Integer) cache.property("getMaxConnections", NO_ARGS, () -> delegate.getMaxConnections());
+    }
+
+    public int getMaxCursorNameLength() throws SQLException {
+        return (Integer) cache.property("getMaxCursorNameLength", NO_ARGS, () -> delegate.getMaxCursorNameLength());
+    }
+
+    public int getMaxIndexLength() throws SQLException {
+        return (Integer) cache.property("getMaxIndexLength", NO_ARGS, () -> delegate.getMaxIndexLength());
+    }
+
+    public int getMaxSchemaNameLength() throws SQLException {
+        return (Integer) cache.property("getMaxSchemaNameLength", NO_ARGS, () -> delegate.getMaxSchemaNameLength());
+    }
+
+    public int getMaxProcedureNameLength() throws SQLException {
+        return (Integer) cache.property("getMaxProcedureNameLength", NO_ARGS, () -> delegate.getMaxProcedureNameLength());
+    }
+
+    public int getMaxCatalogNameLength() throws SQLException {
+        return (Integer) cache.property("getMaxCatalogNameLength", NO_ARGS, () -> delegate.getMaxCatalogNameLength());
+    }
+
+    public int getMaxRowSize() throws SQLException {
+        return (Integer) cache.property("getMaxRowSize", NO_ARGS, () -> delegate.getMaxRowSize());
+    }
+
+    public boolean doesMaxRowSizeIncludeBlobs() throws SQLException {
+        return (Boolean) cache.property("doesMaxRowSizeIncludeBlobs", NO_ARGS, () -> delegate.doesMaxRowSizeIncludeBlobs());
+    }
+
+    public int getMaxStatementLength() throws SQLException {
+        return (Integer) cache.property("getMaxStatementLength", NO_ARGS, () -> delegate.getMaxStatementLength());
+    }
+
+    public int getMaxStatements() throws SQLException {
+        return (Integer) cache.property("getMaxStatements", NO_ARGS, () -> delegate.getMaxStatements());
+    }
+
+    public int getMaxTableNameLength() throws SQLException {
+        return (Integer) cache.property("getMaxTableNameLength", NO_ARGS, () -> delegate.getMaxTableNameLength());
+    }
+
+    public int getMaxTablesInSelect() throws SQLException {
+        return (Integer) cache.property("getMaxTablesInSelect", NO_ARGS, () -> delegate.getMaxTablesInSelect());
+    }
+
+    public int getMaxUserNameLength() throws SQLException {
+        return (Integer) cache.property("getMaxUserNameLength", NO_ARGS, () -> delegate.getMaxUserNameLength());
+    }
+
+    public int getDefaultTransactionIsolation() throws SQLException {
+        return (Integer) cache.property("getDefaultTransactionIsolation", NO_ARGS, () -> delegate.getDefaultTransactionIsolation());
+    }
+
+    public boolean supportsTransactions() throws SQLException {
+        return (Boolean) cache.property("supportsTransactions", NO_ARGS, () -> delegate.supportsTransactions());
+    }
+
+    public boolean supportsTransactionIsolationLevel(int level) throws SQLException {
+        return (Boolean) cache.property("supportsTransactionIsolationLevel", new Object[]{level}, () -> delegate.supportsTransactionIsolationLevel(level));
+    }
+
+    public boolean supportsDataDefinitionAndDataManipulationTransactions() throws SQLException {
+        return (Boolean) cache.property("supportsDataDefinitionAndDataManipulationTransactions", NO_ARGS, () -> delegate.supportsDataDefinitionAndDataManipulationTransactions());
+    }
+
+    public boolean supportsDataManipulationTransactionsOnly() throws SQLException {
+        return (Boolean) cache.property("supportsDataManipulationTransactionsOnly", NO_ARGS, () -> delegate.supportsDataManipulationTransactionsOnly());
+    }
+
+    public boolean dataDefinitionCausesTransactionCommit() throws SQLException {
+        return (Boolean) cache.property("dataDefinitionCausesTransactionCommit", NO_ARGS, () -> delegate.dataDefinitionCausesTransactionCommit());
+    }
+
+    public boolean dataDefinitionIgnoredInTransactions() throws SQLException {
+        return (Boolean) cache.property("dataDefinitionIgnoredInTransactions", NO_ARGS, () -> delegate.dataDefinitionIgnoredInTransactions());
+    }
+
+    public boolean supportsResultSetType(int type) throws SQLException {
+        return (Boolean) cache.property("supportsResultSetType", new Object[]{type}, () -> delegate.supportsResultSetType(type));
+    }
+
+    public boolean supportsResultSetConcurrency(int type, int concurrency) throws SQLException {
+        return (Boolean) cache.property("supportsResultSetConcurrency", new Object[]{type, concurrency}, () -> delegate.supportsResultSetConcurrency(type, concurrency));
+    }
+
+    public boolean ownUpdatesAreVisible(int type) throws SQLException {
+        return (Boolean) cache.property("ownUpdatesAreVisible", new Object[]{type}, () -> delegate.ownUpdatesAreVisible(type));
+    }
+
+    public boolean ownDeletesAreVisible(int type) throws SQLException {
+        return (Boolean) cache.property("ownDeletesAreVisible", new Object[]{type}, () -> delegate.ownDeletesAreVisible(type));
+    }
+
+    public boolean ownInsertsAreVisible(int type) throws SQLException {
+        return (Boolean) cache.property("ownInsertsAreVisible", new Object[]{type}, () -> delegate.ownInsertsAreVisible(type));
+    }
+
+    public boolean othersUpdatesAreVisible(int type) throws SQLException {
+        return (Boolean) cache.property("othersUpdatesAreVisible", new Object[]{type}, () -> delegate.othersUpdatesAreVisible(type));
+    }
+
+    public boolean othersDeletesAreVisible(int type) throws SQLException {
+        return (Boolean) cache.property("othersDeletesAreVisible", new Object[]{type}, () -> delegate.othersDeletesAreVisible(type));
+    }
+
+    public boolean othersInsertsAreVisible(int type) throws SQLException {
+        return (Boolean) cache.property("othersInsertsAreVisible", new Object[]{type}, () -> delegate.othersInsertsAreVisible(type));
+    }
+
+    public boolean updatesAreDetected(int type) throws SQLException {
+        return (Boolean) cache.property("updatesAreDetected", new Object[]{type}, () -> delegate.updatesAreDetected(type));
+    }
+
+    public boolean deletesAreDetected(int type) throws SQLException {
+        return (Boolean) cache.property("deletesAreDetected", new Object[]{type}, () -> delegate.deletesAreDetected(type));
+    }
+
+    public boolean insertsAreDetected(int type) throws SQLException {
+        return (Boolean) cache.property("insertsAreDetected", new Object[]{type}, () -> delegate.insertsAreDetected(type));
+    }
+
+    public boolean supportsBatchUpdates() throws SQLException {
+        return (Boolean) cache.property("supportsBatchUpdates", NO_ARGS, () -> delegate.supportsBatchUpdates());
+    }
+
+    public boolean supportsSavepoints() throws SQLException {
+        return (Boolean) cache.property("supportsSavepoints", NO_ARGS, () -> delegate.supportsSavepoints());
+    }
+
+    public boolean supportsNamedParameters() throws SQLException {
+        return (Boolean) cache.property("supportsNamedParameters", NO_ARGS, () -> delegate.supportsNamedParameters());
+    }
+
+    public boolean supportsMultipleOpenResults() throws SQLException {
+        return (Boolean) cache.property("supportsMultipleOpenResults", NO_ARGS, () -> delegate.supportsMultipleOpenResults());
+    }
+
+    public boolean supportsGetGeneratedKeys() throws SQLException {
+        return (Boolean) cache.property("supportsGetGeneratedKeys", NO_ARGS, () -> delegate.supportsGetGeneratedKeys());
+    }
+
+    public boolean supportsResultSetHoldability(int holdability) throws SQLException {
+        return (Boolean) cache.property("supportsResultSetHoldability", new Object[]{holdability}, () -> delegate.supportsResultSetHoldability(holdability));
+    }
+
+    public int getResultSetHoldability() throws SQLException {
+        return (Integer) cache.property("getResultSetHoldability", NO_ARGS, () -> delegate.getResultSetHoldability());
+    }
+
+    public int getDatabaseMajorVersion() throws SQLException {
+        return (Integer) cache.property("getDatabaseMajorVersion", NO_ARGS, () -> delegate.getDatabaseMajorVersion());
+    }
+
+    public int getDatabaseMinorVersion() throws SQLException {
+        return (Integer) cache.property("getDatabaseMinorVersion", NO_ARGS, () -> delegate.getDatabaseMinorVersion());
+    }
+
+    public int getJDBCMajorVersion() throws SQLException {
+        return (Integer) cache.property("getJDBCMajorVersion", NO_ARGS, () -> delegate.getJDBCMajorVersion());
+    }
+
+    public int getJDBCMinorVersion() throws SQLException {
+        return (Integer) cache.property("getJDBCMinorVersion", NO_ARGS, () -> delegate.getJDBCMinorVersion());
+    }
+
+    public int getSQLStateType() throws SQLException {
+        return (Integer) cache.property("getSQLStateType", NO_ARGS, () -> delegate.getSQLStateType());
+    }
+
+    public boolean locatorsUpdateCopy() throws SQLException {
+        return (Boolean) cache.property("locatorsUpdateCopy", NO_ARGS, () -> delegate.locatorsUpdateCopy());
+    }
+
+    public boolean supportsStatementPooling() throws SQLException {
+        return (Boolean) cache.property("supportsStatementPooling", NO_ARGS, () -> delegate.supportsStatementPooling());
+    }
+
+    public RowIdLifetime getRowIdLifetime() throws SQLException {
+        return (RowIdLifetime) cache.property("getRowIdLifetime", NO_ARGS, () -> delegate.getRowIdLifetime());
+    }
+
+    public boolean supportsStoredFunctionsUsingCallSyntax() throws SQLException {
+        return (Boolean) cache.property("supportsStoredFunctionsUsingCallSyntax", NO_ARGS, () -> delegate.supportsStoredFunctionsUsingCallSyntax());
+    }
+
+    public boolean autoCommitFailureClosesAllResultSets() throws SQLException {
+        return (Boolean) cache.property("autoCommitFailureClosesAllResultSets", NO_ARGS, () -> delegate.autoCommitFailureClosesAllResultSets());
+    }
+
+    public boolean generatedKeyAlwaysReturned() throws SQLException {
+        return (Boolean) cache.property("generatedKeyAlwaysReturned", NO_ARGS, () -> delegate.generatedKeyAlwaysReturned());
+    }
+
+    public long getMaxLogicalLobSize() throws SQLException {
+        return (Long) cache.property("getMaxLogicalLobSize", NO_ARGS, () -> delegate.getMaxLogicalLobSize());
+    }
+
+    public boolean supportsRefCursors() throws SQLException {
+        return (Boolean) cache.property("supportsRefCursors", NO_ARGS, () -> delegate.supportsRefCursors());
+    }
+
+    public boolean supportsSharding() throws SQLException {
+        return (Boolean) cache.property("supportsSharding", NO_ARGS, () -> delegate.supportsSharding());
+    }
+}
@@ -0,0 +1,271 @@
+package foundation.db;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import foundation.util.AppEnv;
+
+/**
+ * DBFanOutExecutor runs a set of independent queries concurrently, each on its own
+ * <code>DBConnection</code> borrowed from a <code>DBPool</code>, so that the latency of
+ * the set approaches that of the slowest query rather than the sum of all of them.
+ * <p/>
+ * At most <code>maxConcurrency</code> tasks run at once; the rest queue up. All tasks of
+ * one call share a deadline: each task is told how many seconds remain once it holds a
+ * connection, and tasks that have not started by the deadline fail without borrowing
+ * one. When one task fails, its siblings are cancelled, including any statement they
+ * are running.
+ */
+public class DBFanOutExecutor {
+
+    private static final Logger log = Logger.getLogger(DBFanOutExecutor.class);
+
+    private final DBPool pool;
+    private final ExecutorService executor;
+
+    public DBFanOutExecutor(DBPool pool, int maxConcurrency) {
+        if (pool == null) throw new IllegalArgumentException("Pool cannot be null");
+        if (maxConcurrency < 1) throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        this.pool = pool;
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new FanOutThreadFactory());
+        tpe.allowCoreThreadTimeOut(true);
+        this.executor = tpe;
+    }
+
+    public DBPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Submits the given tasks and returns immediately. The futures are in the same order
+     * as the tasks. If any task fails, the others are cancelled.
+     *
+     * @param tasks         the independent tasks to run
+     * @param timeoutMillis the deadline for the whole set, relative to now
+     * @return one future per task
+     */
+    public <T> List<Future<T>> submitAll(List<? extends DBTask<T>> tasks, long timeoutMillis) {
+        return submitAll(tasks, timeoutMillis, null);
+    }
+
+    /**
+     * As <code>submitAll</code>, and adds each future to <code>completions</code> once it
+     * is done, so the caller can wait in completion order.
+     */
+    <T> List<Future<T>> submitAll(List<? extends DBTask<T>> tasks, long timeoutMillis, Queue<? super Future<T>> completions) {
+        Batch<T> batch = new Batch<>(System.currentTimeMillis() + timeoutMillis, completions);
+        for (DBTask<T> task : tasks) {
+            batch.futures.add(new BatchTask<>(batch, task));
+        }
+        for (BatchTask<T> future : batch.futures) {
+            executor.execute(future);
+        }
+        return Collections.<Future<T>>unmodifiableList(batch.futures);
+    }
+
+    /**
+     * Runs the given tasks concurrently and waits for all of them.
+     *
+     * @param tasks         the independent tasks to run
+     * @param timeoutMillis the deadline for the whole set, relative to now
+     * @return the task results, in the same order as the tasks
+     * @throws SQLTimeoutException if the deadline passes before every task completes
+     * @throws SQLException        the first failure reported by any task
+     */
+    public <T> List<T> executeAll(List<? extends DBTask<T>> tasks, long timeoutMillis) throws SQLException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<Future<T>> futures = submitAll(tasks, timeoutMillis);
+        List<T> results = new ArrayList<>(futures.size());
+        SQLException failure = null;
+        boolean cancelled = false;
+        for (Future<T> future : futures) {
+            try {
+                long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+                results.add(future.get(remaining, TimeUnit.MILLISECONDS));
+            } catch (CancellationException e) {
+                // a sibling failed; keep looking for the failure that caused it
+                cancelled = true;
+                results.add(null);
+            } catch (ExecutionException e) {
+                if (failure == null) failure = toSQLException(e.getCause());
+                cancelAll(futures);
+                results.add(null);
+            } catch (TimeoutException e) {
+                cancelAll(futures);
+                throw new SQLTimeoutException("Fan-out of " + futures.size() + " queries exceeded " + timeoutMillis + " ms");
+            } catch (InterruptedException e) {
+                cancelAll(futures);
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for fan-out queries", e);
+            }
+        }
+        if (failure != null) throw failure;
+        if (cancelled) throw new SQLException("Fan-out queries were cancelled");
+        return results;
+    }
+
+    /**
+     * Stops accepting work. Running tasks are allowed to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    static SQLException toSQLException(Throwable t) {
+        if (t instanceof SQLException) return (SQLException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new SQLException(t);
+    }
+
+    /**
+     * Converts an absolute deadline into the seconds to hand to <code>setQueryTimeout</code>,
+     * never more than <code>AppEnv.QUERY_TIMEOUT_IN_SECS</code>.
+     *
+     * @throws SQLTimeoutException if the deadline has already passed
+     */
+    static int remainingSecs(long deadline) throws SQLTimeoutException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) throw new SQLTimeoutException("Deadline passed before the query started");
+        int secs = (int) Math.min(Integer.MAX_VALUE, (remaining + 999) / 1000);
+        return AppEnv.QUERY_TIMEOUT_IN_SECS > 0 ? Math.min(secs, AppEnv.QUERY_TIMEOUT_IN_SECS) : secs;
+    }
+
+    private static <T> void cancelAll(List<Future<T>> futures) {
+        for (Future<T> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private static class Batch<T> {
+        final long deadline;
+        final Queue<? super Future<T>> completions;
+        final List<BatchTask<T>> futures = new ArrayList<>();
+
+        Batch(long deadline, Queue<? super Future<T>> completions) {
+            this.deadline = deadline;
+            this.completions = completions;
+        }
+
+        void cancelSiblings(BatchTask<T> failed) {
+            for (BatchTask<T> future : futures) {
+                if (future != failed) future.cancel(true);
+            }
+        }
+    }
+
+    private class BatchTask<T> extends FutureTask<T> {
+        private final Batch<T> batch;
+        private final Execution<T> execution;
+
+        BatchTask(Batch<T> batch, DBTask<T> task) {
+            this(batch, new Execution<>(batch, task));
+        }
+
+        private BatchTask(Batch<T> batch, Execution<T> execution) {
+            super(execution);
+            this.batch = batch;
+            this.execution = execution;
+        }
+
+        /**
+         * Interrupting the thread does not stop a JDBC call already running, so the
+         * statements of a running task are cancelled too, which frees its connection.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) execution.cancel();
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            if (batch.completions != null) batch.completions.add(this);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            super.setException(t);
+            log.warn("Fan-out query failed, cancelling " + (batch.futures.size() - 1) + " sibling queries", t);
+            batch.cancelSiblings(this);
+        }
+    }
+
+    /**
+     * Runs one task on a borrowed connection whose statements are tracked, so that
+     * <code>cancel</code> can stop them from another thread. Once cancelled, the task
+     * cannot create further statements on the connection.
+     */
+    private class Execution<T> implements Callable<T> {
+        private final Batch<T> batch;
+        private final DBTask<T> task;
+        private volatile DBConnection connection = null;
+        private volatile boolean cancelled = false;
+
+        Execution(Batch<T> batch, DBTask<T> task) {
+            this.batch = batch;
+            this.task = task;
+        }
+
+        public T call() throws Exception {
+            remainingSecs(batch.deadline);
+            DBConnection connection = DBPools.borrow(pool);
+            connection.trackStatements();
+            this.connection = connection;
+            try {
+                // the future is already cancelled and its result is ignored
+                if (cancelled) return null;
+                // time spent waiting for the connection counts against the deadline
+                int timeoutSecs = remainingSecs(batch.deadline);
+                DBConnectionWatchdog.Call call = DBConnectionWatchdog.getInstance().watch(connection, "fanOut", timeoutSecs);
+                try {
+                    return task.execute(connection, timeoutSecs);
+                } finally {
+                    call.close();
+                }
+            } finally {
+                this.connection = null;
+                connection.untrackStatements();
+                DBPools.release(pool, connection);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            DBConnection running = connection;
+            if (running != null) running.cancelTrackedStatements();
+        }
+    }
+
+    private static class FanOutThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNumber = new AtomicInteger();
+        private final int number = poolNumber.incrementAndGet();
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DBFanOut-" + number + "-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
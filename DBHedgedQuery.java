@@ -0,0 +1,422 @@
+package foundation.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import foundation.util.AppEnv;
+
+/**
+ * DBHedgedQuery runs latency-critical read-only queries against two equivalent pools,
+ * such as a primary and a replica. A query starts on the primary pool; if it has not
+ * finished after the hedge delay, the same query is also started on the secondary pool.
+ * The first result wins and the other execution is cancelled with
+ * <code>Statement.cancel()</code>.
+ * <p/>
+ * The hedge delay is a percentile (95th by default) of recent query latencies, so only
+ * the slowest few percent of queries are hedged. Hedges also draw from a budget earned
+ * by ordinary queries (5% by default), which keeps the extra load bounded when the
+ * database as a whole slows down. Hedges are skipped when every worker is busy.
+ * <p/>
+ * Only statements classified as read-only by <code>DBSqlFingerprints</code> are
+ * accepted, since a hedged statement may run twice.
+ */
+public class DBHedgedQuery {
+
+    private static final Logger log = Logger.getLogger(DBHedgedQuery.class);
+
+    private final DBPool primary;
+    private final DBPool secondary;
+    private final ThreadPoolExecutor executor;
+    private final LatencyTracker latencies = new LatencyTracker();
+    private final DBTokenBudget budget = new DBTokenBudget(0.05, 10);
+    private volatile double hedgePercentile = 0.95;
+    private volatile long minHedgeDelayMillis = 5;
+    private volatile long initialHedgeDelayMillis = 50;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong hedgesDenied = new AtomicLong();
+
+    /**
+     * @param primary        the pool every query starts on
+     * @param secondary      the pool hedges run on; may be the same pool
+     * @param maxConcurrency the number of executions, first and hedged, that may run at once
+     */
+    public DBHedgedQuery(DBPool primary, DBPool secondary, int maxConcurrency) {
+        if (primary == null || secondary == null) throw new IllegalArgumentException("Pools cannot be null");
+        if (maxConcurrency < 2) throw new IllegalArgumentException("maxConcurrency must be at least 2");
+        this.primary = primary;
+        this.secondary = secondary;
+        this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new HedgeThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * The latency percentile, between 0 and 1, after which a query is hedged.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile <= 0 || hedgePercentile >= 1) throw new IllegalArgumentException("hedgePercentile must be between 0 and 1");
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public long getMinHedgeDelayMillis() {
+        return minHedgeDelayMillis;
+    }
+
+    public void setMinHedgeDelayMillis(long minHedgeDelayMillis) {
+        this.minHedgeDelayMillis = minHedgeDelayMillis;
+    }
+
+    /**
+     * The hedge delay used until enough latencies have been recorded.
+     */
+    public void setInitialHedgeDelayMillis(long initialHedgeDelayMillis) {
+        this.initialHedgeDelayMillis = initialHedgeDelayMillis;
+    }
+
+    /**
+     * Sets the hedging budget: each query earns <code>ratio</code> hedges, and up to
+     * <code>maxTokens</code> unused hedges are kept for bursts.
+     */
+    public void setHedgeBudget(double ratio, int maxTokens) {
+        budget.configure(ratio, maxTokens);
+    }
+
+    /**
+     * The delay after which a query still running is hedged.
+     */
+    public long getHedgeDelayMillis() {
+        long delay = latencies.percentile(hedgePercentile);
+        return Math.max(minHedgeDelayMillis, delay < 0 ? initialHedgeDelayMillis : delay);
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public long getHedged() {
+        return hedged.get();
+    }
+
+    /**
+     * The number of hedged queries answered by the hedge rather than the first execution.
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    public long getHedgesDenied() {
+        return hedgesDenied.get();
+    }
+
+    /**
+     * Runs a read-only query and maps every row.
+     *
+     * @throws IllegalArgumentException if the statement is not read-only
+     * @throws SQLTimeoutException      if no execution finished within the query timeout
+     * @throws SQLException             if every execution failed; the first failure
+     */
+    public <T> List<T> query(String sql, DBRowMapper<T> mapper, Object... params) throws SQLException {
+        if (!DBSqlFingerprints.getInstance().lookup(sql).isReadOnly()) {
+            throw new IllegalArgumentException("Only read-only statements can be hedged: " + sql);
+        }
+        queries.incrementAndGet();
+        budget.deposit();
+        Hedge<T> hedge = new Hedge<>(sql, mapper, params);
+        hedge.start(primary, false);
+        // a query timeout of 0 or less means no limit
+        long timeoutMillis = AppEnv.QUERY_TIMEOUT_IN_SECS * 1000L;
+        long deadline = hedge.startedAt + timeoutMillis;
+        try {
+            try {
+                return hedge.result.get(getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (executor.getActiveCount() >= executor.getMaximumPoolSize() || !budget.withdraw()) {
+                    hedgesDenied.incrementAndGet();
+                } else {
+                    hedged.incrementAndGet();
+                    hedge.start(secondary, true);
+                }
+            }
+            if (timeoutMillis <= 0) return hedge.result.get();
+            long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+            return hedge.result.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SQLTimeoutException("Hedged query exceeded " + timeoutMillis + " ms: " + sql);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for hedged query", e);
+        } catch (ExecutionException e) {
+            throw DBFanOutExecutor.toSQLException(e.getCause());
+        } finally {
+            hedge.cancelAll();
+        }
+    }
+
+    /**
+     * Stops accepting work. Running queries are allowed to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * One query and its executions. The result completes with the first success, or
+     * with the first failure once every started execution has failed.
+     */
+    private class Hedge<T> {
+        final String sql;
+        final DBRowMapper<T> mapper;
+        final Object[] params;
+        final long startedAt = System.currentTimeMillis();
+        final CompletableFuture<List<T>> result = new CompletableFuture<>();
+        final List<Attempt> attempts = new ArrayList<>(2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+
+        Hedge(String sql, DBRowMapper<T> mapper, Object[] params) {
+            this.sql = sql;
+            this.mapper = mapper;
+            this.params = params;
+        }
+
+        void start(final DBPool pool, final boolean isHedge) throws SQLException {
+            if (result.isDone()) return;
+            final Attempt attempt = new Attempt();
+            synchronized (attempts) {
+                attempts.add(attempt);
+            }
+            running.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        execute(pool, attempt, isHedge);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                SQLException failure = new SQLException("Hedged query executor is shut down", e);
+                finished(failure);
+                if (!isHedge) throw failure;
+            }
+        }
+
+        void execute(DBPool pool, Attempt attempt, boolean isHedge) {
+            if (result.isDone()) {
+                // a first execution that never ran still took at least this long
+                if (!isHedge) latencies.record(System.currentTimeMillis() - startedAt);
+                finished(null);
+                return;
+            }
+            DBConnection connection = null;
+            PreparedStatement stmt = null;
+            DBStatementEvent event = new DBStatementEvent();
+            List<T> rows = new ArrayList<>();
+            boolean succeeded = false;
+            Throwable failure = null;
+            try {
+                connection = DBPools.borrow(pool);
+                stmt = connection.prepareStatement(sql);
+                event.begin();
+                attempt.running(stmt);
+                if (attempt.cancelled) return;
+                stmt.setQueryTimeout(AppEnv.QUERY_TIMEOUT_IN_SECS);
+                for (int i = 0; i < params.length; i++) {
+                    stmt.setObject(i + 1, params[i]);
+                }
+                ResultSet rs;
+                long executed = System.nanoTime();
+                boolean ran = false;
+                DBConnectionWatchdog.Call call = DBConnectionWatchdog.getInstance().watch(connection, "hedgedQuery", AppEnv.QUERY_TIMEOUT_IN_SECS);
+                try {
+                    rs = stmt.executeQuery();
+                    ran = true;
+                } finally {
+                    call.close();
+                    // an execution that lost to its twin is not part of the workload
+                    if (!attempt.cancelled) DBWorkloadCapture.statement(connection, stmt, sql, params, executed, ran);
+                }
+                try {
+                    while (!attempt.cancelled && rs.next()) {
+                        rows.add(mapper.mapRow(rs));
+                    }
+                } finally {
+                    rs.close();
+                }
+                if (!attempt.cancelled) {
+                    succeeded = true;
+                    // done before completing, so the caller never cancels the winner
+                    attempt.done();
+                    if (result.complete(rows) && isHedge) hedgesWon.incrementAndGet();
+                }
+            } catch (SQLException | RuntimeException e) {
+                failure = e;
+            } finally {
+                attempt.done();
+                if (!isHedge && (succeeded || attempt.cancelled)) {
+                    latencies.record(System.currentTimeMillis() - startedAt);
+                }
+                if (stmt != null) {
+                    event.end(isHedge ? "hedge" : "hedgedQuery", sql, connection, rows.size(), succeeded);
+                    try {
+                        stmt.close();
+                    } catch (SQLException sqle) {
+                        log.error("Could not close hedged statement.", sqle);
+                    }
+                }
+                if (connection != null) DBPools.release(pool, connection);
+                finished(failure);
+            }
+        }
+
+        /**
+         * Called once per started execution. Fails the query with the first failure once
+         * no execution is left running; after a success the result is already complete.
+         */
+        void finished(Throwable failure) {
+            if (failure != null) firstFailure.compareAndSet(null, failure);
+            if (running.decrementAndGet() == 0 && firstFailure.get() != null) {
+                result.completeExceptionally(firstFailure.get());
+            }
+        }
+
+        /**
+         * Stops every execution still running. Cancelling a statement is a round trip of
+         * its own, so it is sent from a worker rather than delaying the caller.
+         */
+        void cancelAll() {
+            Attempt[] started;
+            synchronized (attempts) {
+                started = attempts.toArray(new Attempt[attempts.size()]);
+            }
+            for (final Attempt attempt : started) {
+                attempt.cancelled = true;
+                if (!attempt.isRunning()) continue;
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            attempt.cancel();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return sql + " " + Arrays.toString(params);
+        }
+    }
+
+    /**
+     * One execution of a hedged query, cancellable from another thread. The statement is
+     * only cancelled while the execution holds it, never after it has been closed and its
+     * connection returned to the pool.
+     */
+    private static class Attempt {
+        private PreparedStatement statement = null;
+        volatile boolean cancelled = false;
+
+        synchronized void running(PreparedStatement stmt) {
+            statement = stmt;
+        }
+
+        synchronized void done() {
+            statement = null;
+        }
+
+        synchronized boolean isRunning() {
+            return statement != null;
+        }
+
+        synchronized void cancel() {
+            if (statement == null) return;
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                log.debug("Could not cancel hedged statement: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keeps the last 1024 latencies of first executions, measured from the start of the
+     * query, and derives percentiles from them, recomputing every 64 samples. A first
+     * execution cancelled because its hedge won is recorded at the time it stopped: its
+     * real latency is at least that, and as cancelling only happens past the hedge delay,
+     * such samples sit in the tail above the percentile, where only their rank matters.
+     * Hedges are not recorded, since only the winning ones finish.
+     * <p/>
+     * Concurrent writes may overwrite each other's slot, which only loses a sample.
+     */
+    private static class LatencyTracker {
+        private static final int SIZE = 1024;
+        private static final int RECOMPUTE_EVERY = 64;
+
+        private final long[] samples = new long[SIZE];
+        private final AtomicLong count = new AtomicLong();
+        private volatile double cachedPercentile = -1;
+        private volatile long cachedValue = -1;
+        private volatile long cachedAt = -1;
+
+        void record(long millis) {
+            long n = count.getAndIncrement();
+            samples[(int) (n & (SIZE - 1))] = millis;
+        }
+
+        /**
+         * Returns the given percentile of recent latencies, or -1 until enough have been
+         * recorded.
+         */
+        long percentile(double p) {
+            long n = count.get();
+            if (n < RECOMPUTE_EVERY) return -1;
+            if (p == cachedPercentile && n - cachedAt < RECOMPUTE_EVERY) return cachedValue;
+            int size = (int) Math.min(n, SIZE);
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            long value = sorted[Math.min(size - 1, (int) (p * size))];
+            cachedValue = value;
+            cachedPercentile = p;
+            cachedAt = n;
+            return value;
+        }
+    }
+
+    private static class HedgeThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNumber = new AtomicInteger(1);
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String prefix = "DBHedgedQuery-" + poolNumber.getAndIncrement() + "-";
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
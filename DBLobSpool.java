@@ -0,0 +1,377 @@
+package foundation.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DBLobSpool moves large BLOB and CLOB values between the driver and the caller without
+ * holding them on the heap. Values up to <code>threshold</code> bytes stay in memory;
+ * larger values are copied in small chunks to a temporary file and read back through
+ * memory-mapped buffers, so heap use stays flat whatever the LOB size.
+ * <p/>
+ * A spool owns the temporary files of every value it produced and the streams opened
+ * over them. Close it together with the statement the values were read from or bound to,
+ * typically in the same <code>finally</code> block or try-with-resources; closing closes
+ * the streams and deletes the files.
+ * <p/>
+ * Character values are spooled as UTF-8.
+ */
+public class DBLobSpool implements Closeable {
+
+    private static final Logger log = Logger.getLogger(DBLobSpool.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long MAP_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final long threshold;
+    private final File directory;
+    private final List<File> files = new ArrayList<>();
+    private final List<Closeable> streams = new ArrayList<>();
+    private boolean closed = false;
+
+    /**
+     * @param threshold the size in bytes above which values are spooled to disk
+     * @param directory where temporary files are created, or <code>null</code> for
+     *                  <code>java.io.tmpdir</code>
+     */
+    public DBLobSpool(long threshold, File directory) {
+        if (threshold < 0) throw new IllegalArgumentException("threshold must not be negative");
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    public DBLobSpool() {
+        this(1024 * 1024, null);
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Reads a binary column of the current row.
+     *
+     * @return a stream over the value, or <code>null</code> if it is SQL NULL
+     */
+    public InputStream readBinary(ResultSet rs, int column) throws SQLException {
+        InputStream in = rs.getBinaryStream(column);
+        if (in == null) return null;
+        try {
+            return spool(in).openStream();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads a character column of the current row.
+     *
+     * @return a reader over the value, or <code>null</code> if it is SQL NULL
+     */
+    public Reader readCharacter(ResultSet rs, int column) throws SQLException {
+        Reader in = rs.getCharacterStream(column);
+        if (in == null) return null;
+        try {
+            return spool(in).openReader();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Spools the stream and binds it with a known length, so the driver can send it
+     * without buffering it first.
+     */
+    public void bindBinary(PreparedStatement stmt, int index, InputStream in) throws SQLException {
+        SpooledValue value = spool(in);
+        stmt.setBinaryStream(index, value.openStream(), value.getLength());
+    }
+
+    /**
+     * Spools the reader and binds it with a known length, so the driver can send it
+     * without buffering it first.
+     */
+    public void bindCharacter(PreparedStatement stmt, int index, Reader in) throws SQLException {
+        SpooledValue value = spool(in);
+        stmt.setCharacterStream(index, value.openReader(), value.getCharacterLength());
+    }
+
+    /**
+     * Copies the stream into the spool. The caller keeps ownership of the stream.
+     */
+    public SpooledValue spool(InputStream in) throws SQLException {
+        checkOpen();
+        SpoolOutputStream out = new SpoolOutputStream();
+        try {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            out.close();
+            return out.toValue(-1);
+        } catch (IOException e) {
+            closeQuietly(out);
+            throw new SQLException("Could not spool LOB value", e);
+        }
+    }
+
+    /**
+     * Copies the reader into the spool as UTF-8. The caller keeps ownership of the reader.
+     */
+    public SpooledValue spool(Reader in) throws SQLException {
+        checkOpen();
+        SpoolOutputStream out = new SpoolOutputStream();
+        try {
+            // one encoder for the whole value, so a surrogate pair split across reads is
+            // encoded whole when the value moves from memory to disk
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            char[] buffer = new char[CHUNK_SIZE / 2];
+            long chars = 0;
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                writer.write(buffer, 0, n);
+                chars += n;
+            }
+            writer.close();
+            return out.toValue(chars);
+        } catch (IOException e) {
+            closeQuietly(out);
+            throw new SQLException("Could not spool LOB value", e);
+        }
+    }
+
+    /**
+     * Closes every stream opened over the values of this spool and deletes its temporary
+     * files.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        for (Closeable stream : streams) {
+            closeQuietly(stream);
+        }
+        streams.clear();
+        for (File file : files) {
+            if (!file.delete() && file.exists()) {
+                // still mapped on platforms that lock mapped files; try again at exit
+                log.warn("Could not delete LOB spool file " + file + ", deleting on exit");
+                file.deleteOnExit();
+            }
+        }
+        files.clear();
+    }
+
+    private File newFile() throws IOException {
+        File file = directory == null
+                ? Files.createTempFile("dblob", ".spool").toFile()
+                : Files.createTempFile(directory.toPath(), "dblob", ".spool").toFile();
+        files.add(file);
+        return file;
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) throw new SQLException("LOB spool is closed");
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            log.error("Could not close LOB stream.", e);
+        }
+    }
+
+    /**
+     * Collects a value in memory until it grows past the threshold, then moves it to a
+     * temporary file and writes the rest there.
+     */
+    private class SpoolOutputStream extends OutputStream {
+        private ByteArrayOutputStream head = new ByteArrayOutputStream();
+        private File file = null;
+        private FileChannel channel = null;
+        private long length = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (file == null) {
+                head.write(b, off, len);
+                if (head.size() > threshold) {
+                    file = newFile();
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                    writeFully(channel, ByteBuffer.wrap(head.toByteArray()));
+                    head = null;
+                }
+            } else {
+                writeFully(channel, ByteBuffer.wrap(b, off, len));
+            }
+            length += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) channel.close();
+        }
+
+        SpooledValue toValue(long characterLength) {
+            return file == null
+                    ? new SpooledValue(DBLobSpool.this, head.toByteArray(), null, length, characterLength)
+                    : new SpooledValue(DBLobSpool.this, null, file, length, characterLength);
+        }
+    }
+
+    /**
+     * A value held by the spool, either in memory or in a temporary file. Each call to
+     * <code>openStream</code> or <code>openReader</code> starts from the beginning.
+     */
+    public static class SpooledValue {
+        private final DBLobSpool spool;
+        private final byte[] bytes;
+        private final File file;
+        private final long length;
+        private final long characterLength;
+
+        SpooledValue(DBLobSpool spool, byte[] bytes, File file, long length, long characterLength) {
+            this.spool = spool;
+            this.bytes = bytes;
+            this.file = file;
+            this.length = length;
+            this.characterLength = characterLength;
+        }
+
+        /**
+         * The length of the value in bytes.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * The length of the value in characters, or -1 for binary values.
+         */
+        public long getCharacterLength() {
+            return characterLength;
+        }
+
+        public boolean isOnDisk() {
+            return file != null;
+        }
+
+        /**
+         * Opens a stream over the value. Streams over values on disk are closed when the
+         * spool closes, if not before.
+         */
+        public InputStream openStream() throws SQLException {
+            if (file == null) return new ByteArrayInputStream(bytes);
+            spool.checkOpen();
+            try {
+                MappedInputStream in = new MappedInputStream(file, length);
+                spool.streams.add(in);
+                return in;
+            } catch (IOException e) {
+                throw new SQLException("Could not open spooled LOB " + file, e);
+            }
+        }
+
+        public Reader openReader() throws SQLException {
+            return new InputStreamReader(openStream(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads a file through memory-mapped segments, mapping the next segment only when
+     * the previous one is used up.
+     */
+    private static class MappedInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long length;
+        private long segmentStart = 0;
+        private MappedByteBuffer segment;
+
+        MappedInputStream(File file, long length) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureSegment()) return -1;
+            return segment.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!ensureSegment()) return -1;
+            int n = Math.min(len, segment.remaining());
+            segment.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && ensureSegment()) {
+                int step = (int) Math.min(n - skipped, segment.remaining());
+                segment.position(segment.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return segment == null ? 0 : segment.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            segment = null;
+            channel.close();
+        }
+
+        private boolean ensureSegment() throws IOException {
+            if (segment != null && segment.hasRemaining()) return true;
+            if (segment != null) segmentStart += segment.capacity();
+            if (segmentStart >= length) return false;
+            long size = Math.min(MAP_SEGMENT_SIZE, length - segmentStart);
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, size);
+            return true;
+        }
+    }
+}
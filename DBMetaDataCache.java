@@ -0,0 +1,301 @@
+package foundation.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DBMetaDataCache holds the <code>DatabaseMetaData</code> answers shared by every
+ * connection of one pool. <code>DBConnection.getMetaData()</code> returns a
+ * <code>DBDatabaseMetaData</code> backed by the cache of its pool.
+ * <p/>
+ * Catalog queries (<code>getTables</code>, <code>getColumns</code>,
+ * <code>getPrimaryKeys</code>, ...) are materialized once into a <code>DBRowStore</code>
+ * and served as independent scrollable cursors until they are older than the time to
+ * live. Concurrent misses for the same call run the catalog query once. Results are keyed
+ * on the call and on the connection's current catalog, and schema, which drivers use
+ * for <code>null</code> arguments. At most <code>maxEntries</code> results are kept:
+ * each miss drops expired results and then the least recently used. Properties of the
+ * database and driver (product version, <code>supportsXxx</code>, limits, ...) are
+ * cached for the life of the pool.
+ * <p/>
+ * Call <code>invalidate(table)</code> after DDL on a table, or <code>invalidate()</code>
+ * after wider schema changes.
+ */
+public class DBMetaDataCache {
+
+    private static final Logger log = Logger.getLogger(DBMetaDataCache.class);
+
+    private static final Map<DBPool, DBMetaDataCache> caches = Collections.synchronizedMap(new WeakHashMap<DBPool, DBMetaDataCache>());
+
+    private final ConcurrentHashMap<Key, Object> properties = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Key, Entry> results = new ConcurrentHashMap<>();
+    private volatile long ttlMillis = 10 * 60 * 1000L;
+    private volatile int maxEntries = 1000;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the cache shared by the connections of the given pool.
+     */
+    public static DBMetaDataCache forPool(DBPool pool) {
+        synchronized (caches) {
+            DBMetaDataCache cache = caches.get(pool);
+            if (cache == null) {
+                cache = new DBMetaDataCache();
+                caches.put(pool, cache);
+            }
+            return cache;
+        }
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * How long catalog query results are served from the cache. Defaults to 10 minutes.
+     */
+    public void setTtlMillis(long ttlMillis) {
+        if (ttlMillis < 0) throw new IllegalArgumentException("ttlMillis must not be negative");
+        this.ttlMillis = ttlMillis;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * The number of catalog query results kept. Defaults to 1000.
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        this.maxEntries = maxEntries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Drops every cached catalog query result.
+     */
+    public void invalidate() {
+        results.clear();
+    }
+
+    /**
+     * Drops the cached catalog query results that may describe the given table: those
+     * asked for it by name or by a pattern matching it, and table listings.
+     */
+    public void invalidate(String table) {
+        for (Iterator<Entry> it = results.values().iterator(); it.hasNext(); ) {
+            if (it.next().mayDescribe(table)) it.remove();
+        }
+    }
+
+    /**
+     * Drops catalog query results and database properties.
+     */
+    public void clear() {
+        results.clear();
+        properties.clear();
+    }
+
+    /**
+     * Returns the cached value of a database property, fetching it on first use.
+     */
+    Object property(String method, Object[] args, Fetch<?> fetch) throws SQLException {
+        Key key = new Key(method, args);
+        Object value = properties.get(key);
+        if (value == null) {
+            value = fetch.fetch();
+            if (value != null) properties.putIfAbsent(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns a cursor over the cached result of a catalog query, running it on a miss.
+     *
+     * @param scope  what else the answer depends on, such as the connection's catalog
+     * @param tables the table names or patterns the query is restricted to, with
+     *               <code>null</code> elements for "every table"; <code>null</code> if the
+     *               query does not depend on tables
+     * @param escape the driver's search string escape, which makes the next
+     *               <code>%</code> or <code>_</code> in a pattern literal
+     */
+    ResultSet resultSet(String method, Object[] args, Object scope, String[] tables, String escape,
+                        Fetch<ResultSet> fetch) throws SQLException {
+        Key key = new Key(method, args, scope);
+        while (true) {
+            long now = System.currentTimeMillis();
+            Entry entry = results.get(key);
+            if (entry != null && entry.expires > now) {
+                entry.lastAccess = now;
+                hits.incrementAndGet();
+                return new DBSpillingResultSet(entry.await());
+            }
+            Entry created = new Entry(tables, escape, now);
+            boolean won = entry == null ? results.putIfAbsent(key, created) == null : results.replace(key, entry, created);
+            if (!won) continue;
+            misses.incrementAndGet();
+            trim(now, created);
+            try {
+                ResultSet rs = fetch.fetch();
+                try {
+                    // catalog results are small; keep them on the heap so cursors over a
+                    // replaced entry stay readable without closing the store
+                    created.store.complete(DBRowStore.materialize(rs, Long.MAX_VALUE, null));
+                } finally {
+                    rs.close();
+                }
+            } catch (SQLException | RuntimeException e) {
+                results.remove(key, created);
+                created.store.completeExceptionally(e);
+                throw e;
+            }
+            if (log.isDebugEnabled()) log.debug("Cached " + key);
+            return new DBSpillingResultSet(created.await());
+        }
+    }
+
+    /**
+     * Drops expired results, then the least recently used ones until at most
+     * <code>maxEntries</code> are left. Runs on misses only, which already pay for a
+     * catalog query.
+     */
+    private void trim(long now, Entry keep) {
+        results.values().removeIf(entry -> entry != keep && entry.expires <= now);
+        while (results.size() > maxEntries) {
+            Map.Entry<Key, Entry> oldest = null;
+            for (Map.Entry<Key, Entry> e : results.entrySet()) {
+                if (e.getValue() != keep && (oldest == null || e.getValue().lastAccess < oldest.getValue().lastAccess)) {
+                    oldest = e;
+                }
+            }
+            if (oldest == null) return;
+            results.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    interface Fetch<V> {
+        V fetch() throws SQLException;
+    }
+
+    private final class Entry {
+        final CompletableFuture<DBRowStore> store = new CompletableFuture<>();
+        final Pattern[] tables;
+        final long expires;
+        volatile long lastAccess;
+
+        Entry(String[] tables, String escape, long now) {
+            this.expires = now + ttlMillis;
+            this.lastAccess = now;
+            if (tables == null) {
+                this.tables = null;
+            } else {
+                this.tables = new Pattern[tables.length];
+                for (int i = 0; i < tables.length; i++) {
+                    this.tables[i] = tables[i] == null ? null : likePattern(tables[i], escape);
+                }
+            }
+        }
+
+        boolean mayDescribe(String table) {
+            if (tables == null) return false;
+            for (Pattern pattern : tables) {
+                if (pattern == null || pattern.matcher(table.toLowerCase(Locale.ROOT)).matches()) return true;
+            }
+            return false;
+        }
+
+        DBRowStore await() throws SQLException {
+            try {
+                return store.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for metadata", e);
+            } catch (ExecutionException e) {
+                throw DBFanOutExecutor.toSQLException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Turns a catalog search pattern into a case-insensitive regular expression:
+     * <code>%</code> matches any run of characters and <code>_</code> any one character,
+     * unless preceded by the escape.
+     */
+    static Pattern likePattern(String like, String escape) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        String lower = like.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (escape != null && !escape.isEmpty() && lower.startsWith(escape, i) && i + escape.length() < lower.length()) {
+                i += escape.length();
+                literal.append(lower.charAt(i));
+            } else if (c == '%' || c == '_') {
+                if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+                regex.append(c == '%' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static final class Key {
+        private final String method;
+        private final Object[] args;
+        private final Object scope;
+
+        Key(String method, Object[] args) {
+            this(method, args, null);
+        }
+
+        Key(String method, Object[] args, Object scope) {
+            this.method = method;
+            this.args = args;
+            this.scope = scope;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return method.equals(other.method) && Arrays.deepEquals(args, other.args) && Objects.equals(scope, other.scope);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * method.hashCode() + Arrays.deepHashCode(args)) + Objects.hashCode(scope);
+        }
+
+        @Override
+        public String toString() {
+            return scope == null ? method + Arrays.deepToString(args) : method + Arrays.deepToString(args) + " in " + scope;
+        }
+    }
+}
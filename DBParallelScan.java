@@ -0,0 +1,397 @@
+package foundation.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import foundation.util.AppEnv;
+
+/**
+ * DBParallelScan splits a query on a numeric or date key into range partitions and
+ * runs each partition on its own <code>DBConnection</code> in a fork-join pool. Rows are
+ * mapped on the scanning threads and handed to the caller through bounded buffers, so
+ * scanners stall when the caller falls behind instead of filling the heap.
+ * <p/>
+ * The SQL must end its parameter list with the range bounds, e.g.
+ * <code>select ... from T where status = ? and id &gt;= ? and id &lt; ? order by id</code>.
+ * The lower bound is inclusive and the upper bound exclusive. In ordered mode partitions
+ * are returned in key order, so the rows come back in key order when each partition query
+ * orders by the key; in unordered mode rows come back as soon as any partition produces them.
+ * For date keys the bounds are epoch milliseconds and are bound as <code>Timestamp</code>s.
+ */
+public class DBParallelScan<T> {
+
+    private static final Logger log = Logger.getLogger(DBParallelScan.class);
+
+    private static final Object END_OF_PARTITION = new Object();
+
+    private final DBPool pool;
+    private final String sql;
+    private final DBRowMapper<T> mapper;
+    private Object[] params = new Object[0];
+    private long lowKey = 0;
+    private long highKey = 0;
+    private int partitions = 4;
+    private boolean ordered = false;
+    private boolean dateKey = false;
+    private int bufferSize = 1024;
+    private int fetchSize = 500;
+    private ForkJoinPool forkJoinPool = null;
+
+    public DBParallelScan(DBPool pool, String sql, DBRowMapper<T> mapper) {
+        if (pool == null) throw new IllegalArgumentException("Pool cannot be null");
+        if (sql == null) throw new IllegalArgumentException("SQL cannot be null");
+        if (mapper == null) throw new IllegalArgumentException("Mapper cannot be null");
+        this.pool = pool;
+        this.sql = sql;
+        this.mapper = mapper;
+    }
+
+    public Object[] getParams() {
+        return params;
+    }
+
+    /**
+     * Sets the parameters bound ahead of the two range bounds.
+     */
+    public void setParams(Object... params) {
+        this.params = params == null ? new Object[0] : params;
+    }
+
+    /**
+     * Sets the key range to scan, <code>lowKey</code> inclusive and <code>highKey</code> exclusive.
+     *
+     * @throws IllegalArgumentException if the range is reversed or spans more than
+     *                                  <code>Long.MAX_VALUE</code> keys
+     */
+    public void setKeyRange(long lowKey, long highKey) {
+        if (highKey < lowKey) throw new IllegalArgumentException("highKey must not be less than lowKey");
+        try {
+            Math.subtractExact(highKey, lowKey);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Key range " + lowKey + ".." + highKey + " is too wide");
+        }
+        this.lowKey = lowKey;
+        this.highKey = highKey;
+    }
+
+    public long getLowKey() {
+        return lowKey;
+    }
+
+    public long getHighKey() {
+        return highKey;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(int partitions) {
+        if (partitions < 1) throw new IllegalArgumentException("partitions must be at least 1");
+        this.partitions = partitions;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public boolean isDateKey() {
+        return dateKey;
+    }
+
+    public void setDateKey(boolean dateKey) {
+        this.dateKey = dateKey;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the number of mapped rows that may wait for the caller before scanners block.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) throw new IllegalArgumentException("bufferSize must be at least 1");
+        this.bufferSize = bufferSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+
+    /**
+     * Sets the pool the partitions run in. By default each scan uses a pool with one
+     * thread per partition; scans that share a pool are limited by its parallelism.
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Starts the scan and returns a cursor over the merged rows. The cursor must be closed.
+     */
+    public Cursor<T> open() {
+        int count = (int) Math.max(1L, Math.min((long) partitions, highKey - lowKey));
+        List<BlockingQueue<Object>> queues = new ArrayList<>();
+        if (ordered) {
+            int capacity = Math.max(16, bufferSize / count);
+            for (int i = 0; i < count; i++) {
+                queues.add(new ArrayBlockingQueue<>(capacity));
+            }
+        } else {
+            queues.add(new ArrayBlockingQueue<>(bufferSize));
+        }
+        ForkJoinPool fjp = forkJoinPool != null ? forkJoinPool : new ForkJoinPool(count);
+        Cursor<T> cursor = new Cursor<>(queues, count, ordered, forkJoinPool == null ? fjp : null);
+        cursor.task = fjp.submit(new SplitTask(cursor, 0, count));
+        return cursor;
+    }
+
+    /**
+     * The lower bound of the given partition. The span is split exactly, the first
+     * <code>span % count</code> partitions taking one key more than the rest, so
+     * partitions never overlap or leave gaps.
+     */
+    long partitionBound(int index, int count) {
+        long span = highKey - lowKey;
+        return lowKey + span / count * index + Math.min(index, span % count);
+    }
+
+    private class SplitTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Cursor<T> cursor;
+        private final int from;
+        private final int to;
+
+        SplitTask(Cursor<T> cursor, int from, int to) {
+            this.cursor = cursor;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                scanPartition(cursor, from);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SplitTask(cursor, from, mid), new SplitTask(cursor, mid, to));
+            }
+        }
+    }
+
+    private void scanPartition(Cursor<T> cursor, int index) {
+        BlockingQueue<Object> queue = cursor.queueFor(index);
+        long lo = partitionBound(index, cursor.partitionCount);
+        long hi = index == cursor.partitionCount - 1 ? highKey : partitionBound(index + 1, cursor.partitionCount);
+        DBConnection connection = null;
+        PreparedStatement stmt = null;
+        DBStatementEvent event = new DBStatementEvent();
+        long rows = 0;
+        boolean succeeded = false;
+        try {
+            if (cursor.closed) return;
+            connection = DBPools.borrow(pool);
+            stmt = connection.prepareStatement(sql);
+            event.begin();
+            stmt.setQueryTimeout(AppEnv.QUERY_TIMEOUT_IN_SECS);
+            stmt.setFetchSize(fetchSize);
+            int i = 1;
+            for (Object param : params) {
+                stmt.setObject(i++, param);
+            }
+            if (dateKey) {
+                stmt.setTimestamp(i++, new Timestamp(lo));
+                stmt.setTimestamp(i, new Timestamp(hi));
+            } else {
+                stmt.setLong(i++, lo);
+                stmt.setLong(i, hi);
+            }
+            ResultSet rs;
+            long executed = System.nanoTime();
+            boolean ran = false;
+            DBConnectionWatchdog.Call call = DBConnectionWatchdog.getInstance().watch(connection, "parallelScan", AppEnv.QUERY_TIMEOUT_IN_SECS);
+            try {
+                rs = stmt.executeQuery();
+                ran = true;
+            } finally {
+                call.close();
+                if (DBWorkloadCapture.isCapturing()) {
+                    Object[] bound = Arrays.copyOf(params, params.length + 2);
+                    bound[params.length] = dateKey ? new Timestamp(lo) : (Object) lo;
+                    bound[params.length + 1] = dateKey ? new Timestamp(hi) : (Object) hi;
+                    DBWorkloadCapture.statement(connection, stmt, sql, bound, executed, ran);
+                }
+            }
+            try {
+                while (!cursor.closed && rs.next()) {
+                    cursor.put(queue, mapper.mapRow(rs));
+                    rows++;
+                }
+            } finally {
+                rs.close();
+            }
+            succeeded = true;
+        } catch (SQLException e) {
+            cursor.fail(e);
+        } catch (RuntimeException e) {
+            cursor.fail(new SQLException("Partition " + index + " mapping failed", e));
+        } finally {
+            if (stmt != null) {
+                event.end("parallelScan", sql, connection, rows, succeeded);
+                try {
+                    stmt.close();
+                } catch (SQLException sqle) {
+                    log.error("Could not close partition statement.", sqle);
+                }
+            }
+            if (connection != null) DBPools.release(pool, connection);
+            cursor.put(queue, END_OF_PARTITION);
+        }
+    }
+
+    /**
+     * Cursor over the merged rows of a running scan. Not thread safe; one caller
+     * reads it, normally in a try-with-resources block.
+     */
+    public static class Cursor<T> implements AutoCloseable {
+        private final List<BlockingQueue<Object>> queues;
+        private final int partitionCount;
+        private final boolean ordered;
+        private final ForkJoinPool ownedPool;
+        private final AtomicReference<SQLException> failure = new AtomicReference<>();
+        private volatile boolean closed = false;
+        private ForkJoinTask<?> task;
+        private int current = 0;
+        private int finished = 0;
+        private T row;
+        private long rowCount = 0;
+
+        Cursor(List<BlockingQueue<Object>> queues, int partitionCount, boolean ordered, ForkJoinPool ownedPool) {
+            this.queues = queues;
+            this.partitionCount = partitionCount;
+            this.ordered = ordered;
+            this.ownedPool = ownedPool;
+        }
+
+        /**
+         * Moves to the next row, blocking until a scanner produces one.
+         *
+         * @return <code>false</code> once every partition is exhausted
+         * @throws SQLException the first failure reported by any partition
+         */
+        @SuppressWarnings("unchecked")
+        public boolean next() throws SQLException {
+            if (closed) throw new SQLException("Scan cursor is closed");
+            while (finished < partitionCount) {
+                checkFailure();
+                BlockingQueue<Object> queue = queues.get(ordered ? current : 0);
+                Object item;
+                try {
+                    item = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new SQLException("Interrupted waiting for scan rows", e);
+                }
+                if (item == null) continue;
+                if (item == END_OF_PARTITION) {
+                    finished++;
+                    current++;
+                    continue;
+                }
+                row = (T) item;
+                rowCount++;
+                return true;
+            }
+            checkFailure();
+            row = null;
+            return false;
+        }
+
+        public T getRow() {
+            return row;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * Stops the scan. Scanners notice on their next row and return their connections.
+         */
+        public void close() {
+            if (closed) return;
+            closed = true;
+            for (BlockingQueue<Object> queue : queues) {
+                queue.clear();
+            }
+            if (task != null) task.cancel(false);
+            if (ownedPool != null) ownedPool.shutdown();
+        }
+
+        BlockingQueue<Object> queueFor(int partition) {
+            return queues.get(ordered ? partition : 0);
+        }
+
+        void fail(SQLException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        void put(final BlockingQueue<Object> queue, final Object item) {
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    boolean done = false;
+
+                    public boolean block() throws InterruptedException {
+                        while (!done && !closed) {
+                            done = queue.offer(item, 100, TimeUnit.MILLISECONDS);
+                        }
+                        return true;
+                    }
+
+                    public boolean isReleasable() {
+                        return done || closed || (done = queue.offer(item));
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void checkFailure() throws SQLException {
+            SQLException e = failure.get();
+            if (e != null) {
+                close();
+                throw e;
+            }
+        }
+    }
+}
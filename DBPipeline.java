@@ -0,0 +1,335 @@
+package foundation.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import foundation.util.AppEnv;
+
+/**
+ * DBPipeline sends several small statements to the database in one round trip. The
+ * statements are joined into a single batch and run with one <code>execute()</code>;
+ * the results are then read back in order with <code>getMoreResults()</code> and handed
+ * to the <code>Result</code> returned when each statement was added.
+ * <p/>
+ * Each query consumes the next result set of the batch and each update consumes the
+ * next update count, so extra update counts (from triggers, for example) ahead of a
+ * query are skipped. An extra update count ahead of an update cannot be told apart from
+ * the update's own, so it shifts the count of that update and every later one: do not
+ * combine updates on tables whose triggers report update counts (on SQL Server, give
+ * such triggers <code>SET NOCOUNT ON</code>).
+ * <p/>
+ * Combining statements is an opt-in through <code>setCombined</code>, since not every
+ * driver accepts several statements in one <code>PreparedStatement</code>, whatever it
+ * reports for <code>supportsMultipleResultSets</code>: SQL Server does, MySQL only with
+ * <code>allowMultiQueries=true</code>. Otherwise, or when only one statement was added,
+ * the statements run one after another on the connection.
+ * <p/>
+ * If a statement fails, <code>execute</code> throws. The statements whose results were
+ * read before the failure keep them; the others are left without a value, and their
+ * <code>get</code> throws <code>IllegalStateException</code>.
+ * <p/>
+ * A pipeline is used once, on one thread.
+ */
+public class DBPipeline {
+
+    private static final Logger log = Logger.getLogger(DBPipeline.class);
+
+    private final DBConnection connection;
+    private final List<Entry<?>> entries = new ArrayList<>();
+    private String separator = ";\n";
+    private boolean combined = false;
+    private boolean executed = false;
+
+    public DBPipeline(DBConnection connection) {
+        if (connection == null) throw new IllegalArgumentException("Connection cannot be null");
+        this.connection = connection;
+    }
+
+    public String getSeparator() {
+        return separator;
+    }
+
+    /**
+     * Sets the text placed between statements in the combined batch.
+     */
+    public void setSeparator(String separator) {
+        this.separator = separator;
+    }
+
+    public boolean isCombined() {
+        return combined;
+    }
+
+    /**
+     * Sends every statement in one combined batch. Only set this when the driver and its
+     * connection settings accept several statements in one <code>PreparedStatement</code>.
+     */
+    public void setCombined(boolean combined) {
+        this.combined = combined;
+    }
+
+    /**
+     * Adds a query whose rows are mapped with the given mapper.
+     */
+    public <T> Result<List<T>> addQuery(String sql, DBRowMapper<T> mapper, Object... params) {
+        Entry<List<T>> entry = new QueryEntry<>(sql, params, mapper);
+        add(entry);
+        return entry.result;
+    }
+
+    /**
+     * Adds an insert, update or delete whose result is its update count.
+     */
+    public Result<Integer> addUpdate(String sql, Object... params) {
+        Entry<Integer> entry = new UpdateEntry(sql, params);
+        add(entry);
+        return entry.result;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Runs every added statement and fills in their results.
+     *
+     * @throws SQLException if a statement fails; the statements whose results were not
+     *                      read yet are left without a value
+     */
+    public void execute() throws SQLException {
+        if (executed) throw new IllegalStateException("Pipeline already executed");
+        executed = true;
+        if (entries.isEmpty()) return;
+        if (!combined || entries.size() == 1) {
+            executeSequentially();
+        } else {
+            executeCombined();
+        }
+    }
+
+    private void add(Entry<?> entry) {
+        if (executed) throw new IllegalStateException("Pipeline already executed");
+        entries.add(entry);
+    }
+
+    private void executeSequentially() throws SQLException {
+        for (Entry<?> entry : entries) {
+            PreparedStatement stmt = connection.prepareStatement(entry.sql);
+            DBStatementEvent event = new DBStatementEvent();
+            event.begin();
+            boolean succeeded = false;
+            try {
+                stmt.setQueryTimeout(AppEnv.QUERY_TIMEOUT_IN_SECS);
+                entry.bind(stmt, 1);
+                long startedNanos = System.nanoTime();
+                boolean ran = false;
+                DBConnectionWatchdog.Call call = DBConnectionWatchdog.getInstance().watch(connection, "execute", AppEnv.QUERY_TIMEOUT_IN_SECS);
+                boolean isResultSet;
+                try {
+                    isResultSet = stmt.execute();
+                    ran = true;
+                } finally {
+                    call.close();
+                    DBWorkloadCapture.statement(connection, stmt, entry.sql, entry.params, startedNanos, ran);
+                }
+                readResult(stmt, entry, isResultSet);
+                succeeded = true;
+            } finally {
+                event.end("execute", entry.sql, connection, entry.rows, succeeded);
+                close(stmt);
+            }
+        }
+    }
+
+    private void executeCombined() throws SQLException {
+        StringBuilder sql = new StringBuilder();
+        for (Entry<?> entry : entries) {
+            if (sql.length() > 0) sql.append(separator);
+            sql.append(entry.sql);
+        }
+        PreparedStatement stmt = connection.prepareStatement(sql.toString());
+        DBStatementEvent event = new DBStatementEvent();
+        event.begin();
+        long rows = 0;
+        boolean succeeded = false;
+        try {
+            stmt.setQueryTimeout(AppEnv.QUERY_TIMEOUT_IN_SECS);
+            int index = 1;
+            for (Entry<?> entry : entries) {
+                index = entry.bind(stmt, index);
+            }
+            long startedNanos = System.nanoTime();
+            boolean ran = false;
+            DBConnectionWatchdog.Call call = DBConnectionWatchdog.getInstance().watch(connection, "pipeline", AppEnv.QUERY_TIMEOUT_IN_SECS);
+            boolean isResultSet;
+            try {
+                isResultSet = stmt.execute();
+                ran = true;
+            } finally {
+                call.close();
+                if (DBWorkloadCapture.isCapturing()) {
+                    DBWorkloadCapture.statement(connection, stmt, sql.toString(), allParams(), startedNanos, ran);
+                }
+            }
+            for (Entry<?> entry : entries) {
+                readResult(stmt, entry, isResultSet);
+                rows += entry.rows;
+                isResultSet = stmt.getMoreResults();
+            }
+            succeeded = true;
+        } finally {
+            event.end("pipeline", sql.toString(), connection, rows, succeeded);
+            close(stmt);
+        }
+    }
+
+    /**
+     * Reads the result for one entry starting at the statement's current result,
+     * skipping results of the wrong kind.
+     */
+    private void readResult(PreparedStatement stmt, Entry<?> entry, boolean isResultSet) throws SQLException {
+        while (true) {
+            boolean read;
+            if (isResultSet) {
+                ResultSet rs = stmt.getResultSet();
+                try {
+                    read = entry.readResultSet(rs);
+                } finally {
+                    rs.close();
+                }
+            } else {
+                int updateCount = stmt.getUpdateCount();
+                if (updateCount == -1) {
+                    throw new SQLException("Pipeline ran out of results reading: " + entry.sql);
+                }
+                read = entry.readUpdateCount(updateCount);
+            }
+            if (read) return;
+            if (log.isDebugEnabled()) log.debug("Skipping unexpected result reading: " + entry.sql);
+            isResultSet = stmt.getMoreResults();
+        }
+    }
+
+    private Object[] allParams() {
+        List<Object> all = new ArrayList<>();
+        for (Entry<?> entry : entries) {
+            all.addAll(Arrays.asList(entry.params));
+        }
+        return all.toArray();
+    }
+
+    private static void close(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException sqle) {
+            log.error("Could not close pipeline statement.", sqle);
+        }
+    }
+
+    /**
+     * The result of one pipelined statement, available once the pipeline has executed.
+     */
+    public static class Result<T> {
+        private T value;
+        private boolean done = false;
+
+        public T get() {
+            if (!done) throw new IllegalStateException("Pipeline has not executed");
+            return value;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        void set(T value) {
+            this.value = value;
+            this.done = true;
+        }
+    }
+
+    private abstract static class Entry<T> {
+        final String sql;
+        final Object[] params;
+        final Result<T> result = new Result<>();
+        long rows = 0;
+
+        Entry(String sql, Object[] params) {
+            if (sql == null) throw new IllegalArgumentException("SQL cannot be null");
+            this.sql = sql;
+            this.params = params == null ? new Object[0] : params;
+        }
+
+        int bind(PreparedStatement stmt, int index) throws SQLException {
+            for (Object param : params) {
+                stmt.setObject(index++, param);
+            }
+            return index;
+        }
+
+        /**
+         * Reads the result set if it is this entry's result.
+         *
+         * @return whether the result set was this entry's
+         */
+        abstract boolean readResultSet(ResultSet rs) throws SQLException;
+
+        /**
+         * Reads the update count if it is this entry's result.
+         *
+         * @return whether the update count was this entry's
+         */
+        abstract boolean readUpdateCount(int updateCount);
+    }
+
+    private static class QueryEntry<T> extends Entry<List<T>> {
+        private final DBRowMapper<T> mapper;
+
+        QueryEntry(String sql, Object[] params, DBRowMapper<T> mapper) {
+            super(sql, params);
+            if (mapper == null) throw new IllegalArgumentException("Mapper cannot be null");
+            this.mapper = mapper;
+        }
+
+        @Override
+        boolean readResultSet(ResultSet rs) throws SQLException {
+            List<T> mapped = new ArrayList<>();
+            while (rs.next()) {
+                mapped.add(mapper.mapRow(rs));
+            }
+            rows = mapped.size();
+            result.set(mapped);
+            return true;
+        }
+
+        @Override
+        boolean readUpdateCount(int updateCount) {
+            return false;
+        }
+    }
+
+    private static class UpdateEntry extends Entry<Integer> {
+
+        UpdateEntry(String sql, Object[] params) {
+            super(sql, params);
+        }
+
+        @Override
+        boolean readResultSet(ResultSet rs) {
+            return false;
+        }
+
+        @Override
+        boolean readUpdateCount(int updateCount) {
+            rows = updateCount;
+            result.set(updateCount);
+            return true;
+        }
+    }
+}
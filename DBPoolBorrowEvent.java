@@ -0,0 +1,30 @@
+package foundation.db;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event for borrowing a connection from a <code>DBPool</code>. The
+ * event duration is the time the caller waited for the connection, including waits
+ * that ended without one.
+ */
+@Name("foundation.db.PoolBorrow")
+@Label("DB Pool Borrow")
+@Category({"Database", "Pool"})
+@Description("A wait for a connection from a DBPool")
+@Threshold("1 ms")
+public class DBPoolBorrowEvent extends Event {
+
+    @Label("Pool")
+    String pool;
+
+    @Label("SPID")
+    String spid;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
@@ -0,0 +1,34 @@
+package foundation.db;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for returning a connection to a <code>DBPool</code>, with how
+ * long it was held. The event duration is the time the pool took to take it back. It is recorded on every return, so it is off unless a recording
+ * enables it.
+ */
+@Name("foundation.db.PoolReturn")
+@Label("DB Pool Return")
+@Category({"Database", "Pool"})
+@Description("A connection returned to a DBPool")
+@Enabled(false)
+@StackTrace(false)
+public class DBPoolReturnEvent extends Event {
+
+    @Label("Pool")
+    String pool;
+
+    @Label("SPID")
+    String spid;
+
+    @Label("Held Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long heldTime;
+}
@@ -0,0 +1,55 @@
+package foundation.db;
+
+import java.sql.SQLException;
+
+/**
+ * Borrow and return helpers used by the executors in this package, so that every
+ * connection they take from a <code>DBPool</code> is recorded as a <code>DBPoolBorrowEvent</code>
+ * and a <code>DBPoolReturnEvent</code>.
+ */
+final class DBPools {
+
+    private DBPools() {
+    }
+
+    /**
+     * @throws SQLException if the pool has no connection to give
+     */
+    static DBConnection borrow(DBPool pool) throws SQLException {
+        DBPoolBorrowEvent event = new DBPoolBorrowEvent();
+        event.begin();
+        DBConnection connection = null;
+        try {
+            connection = pool.getConnection();
+        } finally {
+            // a borrow that times out or fails is the slow case worth recording
+            event.end();
+            if (event.shouldCommit()) {
+                event.pool = String.valueOf(pool);
+                event.spid = connection == null ? null : connection.getSpid();
+                event.succeeded = connection != null;
+                event.commit();
+            }
+        }
+        if (connection == null) throw new SQLException("No connection available from " + pool);
+        connection.setBorrowedAt(System.currentTimeMillis());
+        return connection;
+    }
+
+    static void release(DBPool pool, DBConnection connection) {
+        long borrowed = connection.getBorrowedAt();
+        DBPoolReturnEvent event = new DBPoolReturnEvent();
+        event.begin();
+        try {
+            pool.returnConnection(connection);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.pool = String.valueOf(pool);
+                event.spid = connection.getSpid();
+                event.heldTime = System.currentTimeMillis() - borrowed;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package foundation.db;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * A copy of a <code>ResultSetMetaData</code> that stays usable after the result set and
+ * statement it came from are closed.
+ */
+public class DBResultSetMetaData implements ResultSetMetaData {
+
+    private final int columnCount;
+    private final String[] labels;
+    private final String[] names;
+    private final String[] schemaNames;
+    private final String[] tableNames;
+    private final String[] catalogNames;
+    private final int[] types;
+    private final String[] typeNames;
+    private final String[] classNames;
+    private final int[] precisions;
+    private final int[] scales;
+    private final int[] displaySizes;
+    private final int[] nullables;
+    private final boolean[] autoIncrements;
+    private final boolean[] caseSensitives;
+    private final boolean[] signeds;
+    private final boolean[] currencies;
+
+    public DBResultSetMetaData(ResultSetMetaData source) throws SQLException {
+        columnCount = source.getColumnCount();
+        labels = new String[columnCount];
+        names = new String[columnCount];
+        schemaNames = new String[columnCount];
+        tableNames = new String[columnCount];
+        catalogNames = new String[columnCount];
+        types = new int[columnCount];
+        typeNames = new String[columnCount];
+        classNames = new String[columnCount];
+        precisions = new int[columnCount];
+        scales = new int[columnCount];
+        displaySizes = new int[columnCount];
+        nullables = new int[columnCount];
+        autoIncrements = new boolean[columnCount];
+        caseSensitives = new boolean[columnCount];
+        signeds = new boolean[columnCount];
+        currencies = new boolean[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            int column = i + 1;
+            labels[i] = source.getColumnLabel(column);
+            names[i] = source.getColumnName(column);
+            schemaNames[i] = source.getSchemaName(column);
+            tableNames[i] = source.getTableName(column);
+            catalogNames[i] = source.getCatalogName(column);
+            types[i] = source.getColumnType(column);
+            typeNames[i] = source.getColumnTypeName(column);
+            classNames[i] = source.getColumnClassName(column);
+            precisions[i] = source.getPrecision(column);
+            scales[i] = source.getScale(column);
+            displaySizes[i] = source.getColumnDisplaySize(column);
+            nullables[i] = source.isNullable(column);
+            autoIncrements[i] = source.isAutoIncrement(column);
+            caseSensitives[i] = source.isCaseSensitive(column);
+            signeds[i] = source.isSigned(column);
+            currencies[i] = source.isCurrency(column);
+        }
+    }
+
+    private int index(int column) throws SQLException {
+        if (column < 1 || column > columnCount) {
+            throw new SQLException("Column index " + column + " out of range 1.." + columnCount, "07009");
+        }
+        return column - 1;
+    }
+
+    /**
+     * Returns the 1-based index of the column with the given label or name, ignoring case.
+     */
+    public int findColumn(String label) throws SQLException {
+        for (int i = 0; i < columnCount; i++) {
+            if (label.equalsIgnoreCase(labels[i])) return i + 1;
+        }
+        for (int i = 0; i < columnCount; i++) {
+            if (label.equalsIgnoreCase(names[i])) return i + 1;
+        }
+        throw new SQLException("No column named " + label, "42S22");
+    }
+
+    public int getColumnCount() throws SQLException {
+        return columnCount;
+    }
+
+    public boolean isAutoIncrement(int column) throws SQLException {
+        return autoIncrements[index(column)];
+    }
+
+    public boolean isCaseSensitive(int column) throws SQLException {
+        return caseSensitives[index(column)];
+    }
+
+    public boolean isSearchable(int column) throws SQLException {
+        index(column);
+        return false;
+    }
+
+    public boolean isCurrency(int column) throws SQLException {
+        return currencies[index(column)];
+    }
+
+    public int isNullable(int column) throws SQLException {
+        return nullables[index(column)];
+    }
+
+    public boolean isSigned(int column) throws SQLException {
+        return signeds[index(column)];
+    }
+
+    public int getColumnDisplaySize(int column) throws SQLException {
+        return displaySizes[index(column)];
+    }
+
+    public String getColumnLabel(int column) throws SQLException {
+        return labels[index(column)];
+    }
+
+    public String getColumnName(int column) throws SQLException {
+        return names[index(column)];
+    }
+
+    public String getSchemaName(int column) throws SQLException {
+        return schemaNames[index(column)];
+    }
+
+    public int getPrecision(int column) throws SQLException {
+        return precisions[index(column)];
+    }
+
+    public int getScale(int column) throws SQLException {
+        return scales[index(column)];
+    }
+
+    public String getTableName(int column) throws SQLException {
+        return tableNames[index(column)];
+    }
+
+    public String getCatalogName(int column) throws SQLException {
+        return catalogNames[index(column)];
+    }
+
+    public int getColumnType(int column) throws SQLException {
+        return types[index(column)];
+    }
+
+    public String getColumnTypeName(int column) throws SQLException {
+        return typeNames[index(column)];
+    }
+
+    public boolean isReadOnly(int column) throws SQLException {
+        index(column);
+        return true;
+    }
+
+    public boolean isWritable(int column) throws SQLException {
+        index(column);
+        return false;
+    }
+
+    public boolean isDefinitelyWritable(int column) throws SQLException {
+        index(column);
+        return false;
+    }
+
+    public String getColumnClassName(int column) throws SQLException {
+        return classNames[index(column)];
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+}
@@ -0,0 +1,15 @@
+package foundation.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a <code>ResultSet</code> to an object. Implementations must
+ * not move the cursor.
+ *
+ * @param <T> the type of object produced for each row
+ */
+public interface DBRowMapper<T> {
+
+    T mapRow(ResultSet rs) throws SQLException;
+}
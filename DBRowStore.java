@@ -0,0 +1,519 @@
+package foundation.db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DBRowStore keeps the rows of a result set in a compact binary form. Rows are held in
+ * heap pages until the store would use more than <code>memoryBudget</code> bytes; after
+ * that every row, including those already stored, lives in a temporary file that is read
+ * back through memory-mapped segments. Only the offset and length of each row (12 bytes)
+ * stay on the heap.
+ * <p/>
+ * Rows are appended by one thread. Once appended, they may be read by any number of
+ * threads at the same time.
+ */
+public class DBRowStore implements Closeable {
+
+    private static final Logger log = Logger.getLogger(DBRowStore.class);
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte DECIMAL = 6;
+    private static final byte STRING = 7;
+    private static final byte BYTES = 8;
+    private static final byte DATE = 9;
+    private static final byte TIME = 10;
+    private static final byte TIMESTAMP = 11;
+
+    private static final int PAGE_SIZE = 1024 * 1024;
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private final DBResultSetMetaData metaData;
+    private final byte[] encodings;
+    private final long memoryBudget;
+    private final File directory;
+
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private volatile int rowCount = 0;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+    // heap mode: offsets hold the page index in the high word and the position in the low word
+    private List<byte[]> pages = new ArrayList<>();
+    private int pagePosition = 0;
+    private long pageBytes = 0;
+
+    // file mode
+    private File file = null;
+    private FileChannel channel = null;
+    private ByteBuffer writeBuffer = null;
+    private long fileEnd = 0;
+    private long flushed = 0;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private boolean closed = false;
+
+    /**
+     * Creates an empty store for rows shaped like those of the given result set.
+     *
+     * @param memoryBudget the number of bytes of rows kept on the heap before spilling
+     * @param directory    where the spill file is created, or <code>null</code> for
+     *                     <code>java.io.tmpdir</code>
+     */
+    public DBRowStore(ResultSet shape, long memoryBudget, File directory) throws SQLException {
+        this.metaData = new DBResultSetMetaData(shape.getMetaData());
+        this.memoryBudget = memoryBudget;
+        this.directory = directory;
+        this.encodings = new byte[metaData.getColumnCount()];
+        for (int i = 0; i < encodings.length; i++) {
+            encodings[i] = encodingFor(metaData.getColumnType(i + 1));
+        }
+    }
+
+    /**
+     * Reads every remaining row of the result set into a new store. The result set is
+     * left open.
+     */
+    public static DBRowStore materialize(ResultSet rs, long memoryBudget, File directory) throws SQLException {
+        DBRowStore store = new DBRowStore(rs, memoryBudget, directory);
+        try {
+            while (rs.next()) {
+                store.append(rs);
+            }
+        } catch (SQLException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    public DBResultSetMetaData getMetaData() {
+        return metaData;
+    }
+
+    public int getColumnCount() {
+        return encodings.length;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Appends the current row of the result set.
+     */
+    public synchronized void append(ResultSet rs) throws SQLException {
+        if (closed) throw new SQLException("Row store is closed");
+        if (rowCount == Integer.MAX_VALUE) throw new SQLException("Row store is full");
+        scratch.clear();
+        for (int i = 0; i < encodings.length; i++) {
+            encode(rs, i + 1, encodings[i]);
+        }
+        scratch.flip();
+        if (rowCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, rowCount * 2);
+            lengths = Arrays.copyOf(lengths, rowCount * 2);
+        }
+        int length = scratch.remaining();
+        try {
+            offsets[rowCount] = file == null ? storeInMemory(length) : storeInFile(scratch);
+        } catch (IOException e) {
+            throw new SQLException("Could not write to row spill file " + file, e);
+        }
+        lengths[rowCount] = length;
+        rowCount++;
+    }
+
+    /**
+     * Decodes the given row, 0-based, into <code>values</code>, which must have room for
+     * every column.
+     */
+    public void read(int row, Object[] values) throws SQLException {
+        ByteBuffer buffer = rowBuffer(row);
+        for (int i = 0; i < encodings.length; i++) {
+            values[i] = decode(buffer);
+        }
+    }
+
+    /**
+     * Releases the heap pages and deletes the spill file.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        pages = null;
+        segments.clear();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("Could not close row spill file " + file, e);
+            }
+            if (!file.delete() && file.exists()) {
+                log.warn("Could not delete row spill file " + file + ", deleting on exit");
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private long storeInMemory(int length) throws IOException {
+        if (pages.isEmpty() || pagePosition + length > pages.get(pages.size() - 1).length) {
+            // pages start small and double up to PAGE_SIZE, so small results stay small;
+            // rows never span pages, and a row larger than a page gets a page of its own
+            int last = pages.isEmpty() ? 0 : pages.get(pages.size() - 1).length;
+            int size = Math.max(length, Math.min(PAGE_SIZE, Math.max(4096, last * 2)));
+            if (pageBytes + size > memoryBudget && rowCount > 0) {
+                spill();
+                return storeInFile(scratch);
+            }
+            pages.add(new byte[size]);
+            pageBytes += size;
+            pagePosition = 0;
+        }
+        int page = pages.size() - 1;
+        int position = pagePosition;
+        scratch.get(pages.get(page), position, length);
+        pagePosition += length;
+        return ((long) page << 32) | position;
+    }
+
+    private void spill() throws IOException {
+        file = directory == null
+                ? Files.createTempFile("dbrows", ".spool").toFile()
+                : Files.createTempFile(directory.toPath(), "dbrows", ".spool").toFile();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        for (int row = 0; row < rowCount; row++) {
+            long offset = offsets[row];
+            byte[] page = pages.get((int) (offset >>> 32));
+            offsets[row] = storeInFile(ByteBuffer.wrap(page, (int) offset, lengths[row]));
+        }
+        pages = null;
+        log.info("Row store spilled " + rowCount + " rows to " + file + " after reaching " + memoryBudget + " bytes");
+    }
+
+    private long storeInFile(ByteBuffer row) throws IOException {
+        int length = row.remaining();
+        long segmentOffset = fileEnd % SEGMENT_SIZE;
+        if (length <= SEGMENT_SIZE && segmentOffset + length > SEGMENT_SIZE) {
+            // pad to the next segment so the row can be read from a single mapping
+            long padding = SEGMENT_SIZE - segmentOffset;
+            fileEnd += padding;
+            while (padding > 0) {
+                if (!writeBuffer.hasRemaining()) flushWrites();
+                int n = (int) Math.min(padding, writeBuffer.remaining());
+                writeBuffer.position(writeBuffer.position() + n);
+                padding -= n;
+            }
+        }
+        long offset = fileEnd;
+        while (row.hasRemaining()) {
+            if (!writeBuffer.hasRemaining()) flushWrites();
+            int n = Math.min(row.remaining(), writeBuffer.remaining());
+            ByteBuffer slice = row.duplicate();
+            slice.limit(slice.position() + n);
+            writeBuffer.put(slice);
+            row.position(row.position() + n);
+        }
+        fileEnd = offset + length;
+        return offset;
+    }
+
+    private void flushWrites() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            flushed += channel.write(writeBuffer, flushed);
+        }
+        writeBuffer.clear();
+    }
+
+    private synchronized ByteBuffer rowBuffer(int row) throws SQLException {
+        if (closed) throw new SQLException("Row store is closed");
+        if (row < 0 || row >= rowCount) throw new SQLException("Row " + row + " out of range 0.." + (rowCount - 1));
+        long offset = offsets[row];
+        int length = lengths[row];
+        if (file == null) {
+            return ByteBuffer.wrap(pages.get((int) (offset >>> 32)), (int) offset, length);
+        }
+        try {
+            if (offset >= flushed) {
+                // a row appended since the last flush, typically read straight after it
+                // was appended; copy it out of the write buffer rather than flushing and
+                // mapping once per row
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                ByteBuffer pending = writeBuffer.duplicate();
+                pending.position((int) (offset - flushed));
+                pending.limit((int) (offset - flushed) + length);
+                buffer.put(pending);
+                buffer.flip();
+                return buffer;
+            }
+            if (offset + length > flushed || length > SEGMENT_SIZE) {
+                // a row cut by the last flush, or larger than a segment, is read with a
+                // positional read instead of a mapping
+                if (offset + length > flushed) flushWrites();
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    channel.read(buffer, offset + buffer.position());
+                }
+                buffer.flip();
+                return buffer;
+            }
+            int index = (int) (offset / SEGMENT_SIZE);
+            long segmentStart = index * SEGMENT_SIZE;
+            while (segments.size() <= index) segments.add(null);
+            MappedByteBuffer segment = segments.get(index);
+            if (segment == null || segment.capacity() < offset + length - segmentStart) {
+                // map everything written so far, so that reading on stays within this
+                // mapping until rows written after it are reached
+                flushWrites();
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                        Math.min(SEGMENT_SIZE, flushed - segmentStart));
+                segments.set(index, segment);
+            }
+            ByteBuffer buffer = segment.duplicate();
+            buffer.position((int) (offset - segmentStart));
+            buffer.limit((int) (offset - segmentStart) + length);
+            return buffer;
+        } catch (IOException e) {
+            throw new SQLException("Could not read row spill file " + file, e);
+        }
+    }
+
+    private static byte encodingFor(int sqlType) {
+        switch (sqlType) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.REAL:
+                return FLOAT;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return DECIMAL;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BYTES;
+            case Types.DATE:
+                return DATE;
+            case Types.TIME:
+                return TIME;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            default:
+                return STRING;
+        }
+    }
+
+    private void ensureScratch(int bytes) {
+        if (scratch.remaining() < bytes) {
+            int capacity = Math.max(scratch.capacity() * 2, scratch.position() + bytes);
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            scratch.flip();
+            larger.put(scratch);
+            scratch = larger;
+        }
+    }
+
+    private void encode(ResultSet rs, int column, byte encoding) throws SQLException {
+        switch (encoding) {
+            case BOOLEAN: {
+                boolean value = rs.getBoolean(column);
+                if (putNull(rs)) return;
+                ensureScratch(2);
+                scratch.put(BOOLEAN).put((byte) (value ? 1 : 0));
+                return;
+            }
+            case INT: {
+                int value = rs.getInt(column);
+                if (putNull(rs)) return;
+                ensureScratch(5);
+                scratch.put(INT).putInt(value);
+                return;
+            }
+            case LONG: {
+                long value = rs.getLong(column);
+                if (putNull(rs)) return;
+                ensureScratch(9);
+                scratch.put(LONG).putLong(value);
+                return;
+            }
+            case FLOAT: {
+                float value = rs.getFloat(column);
+                if (putNull(rs)) return;
+                ensureScratch(5);
+                scratch.put(FLOAT).putFloat(value);
+                return;
+            }
+            case DOUBLE: {
+                double value = rs.getDouble(column);
+                if (putNull(rs)) return;
+                ensureScratch(9);
+                scratch.put(DOUBLE).putDouble(value);
+                return;
+            }
+            case DECIMAL: {
+                BigDecimal value = rs.getBigDecimal(column);
+                if (value == null) {
+                    putNull();
+                    return;
+                }
+                byte[] unscaled = value.unscaledValue().toByteArray();
+                ensureScratch(9 + unscaled.length);
+                scratch.put(DECIMAL).putInt(value.scale()).putInt(unscaled.length).put(unscaled);
+                return;
+            }
+            case BYTES: {
+                byte[] value = rs.getBytes(column);
+                if (value == null) {
+                    putNull();
+                    return;
+                }
+                ensureScratch(5 + value.length);
+                scratch.put(BYTES).putInt(value.length).put(value);
+                return;
+            }
+            case DATE: {
+                Date value = rs.getDate(column);
+                if (value == null) {
+                    putNull();
+                    return;
+                }
+                ensureScratch(9);
+                scratch.put(DATE).putLong(value.getTime());
+                return;
+            }
+            case TIME: {
+                Time value = rs.getTime(column);
+                if (value == null) {
+                    putNull();
+                    return;
+                }
+                ensureScratch(9);
+                scratch.put(TIME).putLong(value.getTime());
+                return;
+            }
+            case TIMESTAMP: {
+                Timestamp value = rs.getTimestamp(column);
+                if (value == null) {
+                    putNull();
+                    return;
+                }
+                ensureScratch(13);
+                scratch.put(TIMESTAMP).putLong(value.getTime()).putInt(value.getNanos());
+                return;
+            }
+            default: {
+                String value = rs.getString(column);
+                if (value == null) {
+                    putNull();
+                    return;
+                }
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                ensureScratch(5 + bytes.length);
+                scratch.put(STRING).putInt(bytes.length).put(bytes);
+            }
+        }
+    }
+
+    private boolean putNull(ResultSet rs) throws SQLException {
+        if (!rs.wasNull()) return false;
+        putNull();
+        return true;
+    }
+
+    private void putNull() {
+        ensureScratch(1);
+        scratch.put(NULL);
+    }
+
+    private static Object decode(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case INT:
+                return buffer.getInt();
+            case LONG:
+                return buffer.getLong();
+            case FLOAT:
+                return buffer.getFloat();
+            case DOUBLE:
+                return buffer.getDouble();
+            case DECIMAL: {
+                int scale = buffer.getInt();
+                byte[] unscaled = new byte[buffer.getInt()];
+                buffer.get(unscaled);
+                return new BigDecimal(new BigInteger(unscaled), scale);
+            }
+            case BYTES: {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return bytes;
+            }
+            case DATE:
+                return new Date(buffer.getLong());
+            case TIME:
+                return new Time(buffer.getLong());
+            case TIMESTAMP: {
+                Timestamp value = new Timestamp(buffer.getLong());
+                value.setNanos(buffer.getInt());
+                return value;
+            }
+            case STRING: {
+                int length = buffer.getInt();
+                if (buffer.hasArray()) {
+                    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+                    buffer.position(buffer.position() + length);
+                    return value;
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            default:
+                throw new IllegalStateException("Corrupt row store: unknown value tag " + tag);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package foundation.db;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Sorts <code>SQLException</code>s into the categories that decide whether a unit of
+ * work may be retried and whether the connection it ran on can still be used. The
+ * SQLState class is checked first, then the vendor codes of SQL Server/Sybase, which
+ * report most errors with a generic SQLState.
+ */
+public class DBSQLExceptionClassifier {
+
+    /**
+     * Categories in order of precedence when an exception chain holds several.
+     */
+    public enum Category {
+        /** The connection is broken; the work may succeed on another connection. */
+        CONNECTION_LOST(true, true),
+        /** Deadlock victim or serialization failure; the transaction was rolled back. */
+        DEADLOCK(true, false),
+        /** Lock wait timeout or similar contention; the statement may succeed later. */
+        TRANSIENT(true, false),
+        /** The query ran past its timeout; retrying would only add load. */
+        TIMEOUT(false, false),
+        /** Anything else: constraint violations, syntax errors, permissions, ... */
+        NON_RETRYABLE(false, false);
+
+        private final boolean retryable;
+        private final boolean connectionBroken;
+
+        Category(boolean retryable, boolean connectionBroken) {
+            this.retryable = retryable;
+            this.connectionBroken = connectionBroken;
+        }
+
+        public boolean isRetryable() {
+            return retryable;
+        }
+
+        public boolean isConnectionBroken() {
+            return connectionBroken;
+        }
+    }
+
+    // SQL Server/Sybase error numbers
+    private static final int DEADLOCK_VICTIM = 1205;
+    private static final int LOCK_REQUEST_TIMEOUT = 1222;
+    private static final int SNAPSHOT_UPDATE_CONFLICT = 3960;
+    private static final int DATABASE_UNAVAILABLE = 40613;
+    private static final int SERVICE_BUSY = 40501;
+    private static final int TRANSPORT_ERROR = 233;
+    private static final int CONNECTION_RESET = 10054;
+    private static final int CONNECTION_ABORTED = 10053;
+
+    /**
+     * Classifies the exception, looking through the chains from
+     * <code>getNextException</code> and <code>getCause</code> for the most specific
+     * cause, since drivers and wrappers often report a deadlock wrapped in another
+     * exception.
+     */
+    public Category classify(SQLException e) {
+        Category result = Category.NON_RETRYABLE;
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        Deque<Throwable> pending = new ArrayDeque<>();
+        pending.add(e);
+        while (!pending.isEmpty()) {
+            Throwable current = pending.poll();
+            if (!seen.add(current)) continue;
+            if (current instanceof SQLException) {
+                Category category = classifyOne((SQLException) current);
+                if (category.ordinal() < result.ordinal()) result = category;
+                SQLException next = ((SQLException) current).getNextException();
+                if (next != null) pending.add(next);
+            }
+            if (current.getCause() != null) pending.add(current.getCause());
+        }
+        return result;
+    }
+
+    protected Category classifyOne(SQLException e) {
+        if (e instanceof SQLTransactionRollbackException) return Category.DEADLOCK;
+        if (e instanceof SQLTimeoutException) return Category.TIMEOUT;
+        if (e instanceof SQLRecoverableException
+                || e instanceof SQLTransientConnectionException
+                || e instanceof SQLNonTransientConnectionException) {
+            return Category.CONNECTION_LOST;
+        }
+
+        String state = e.getSQLState();
+        if (state != null && state.length() >= 2) {
+            if (state.startsWith("40")) return Category.DEADLOCK;
+            if (state.startsWith("08")) return Category.CONNECTION_LOST;
+            if (state.equals("HYT00") || state.equals("HYT01")) return Category.TIMEOUT;
+        }
+
+        switch (e.getErrorCode()) {
+            case DEADLOCK_VICTIM:
+            case SNAPSHOT_UPDATE_CONFLICT:
+                return Category.DEADLOCK;
+            case LOCK_REQUEST_TIMEOUT:
+            case SERVICE_BUSY:
+            case DATABASE_UNAVAILABLE:
+                return Category.TRANSIENT;
+            case TRANSPORT_ERROR:
+            case CONNECTION_RESET:
+            case CONNECTION_ABORTED:
+                return Category.CONNECTION_LOST;
+            default:
+                return Category.NON_RETRYABLE;
+        }
+    }
+}
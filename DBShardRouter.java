@@ -0,0 +1,373 @@
+package foundation.db;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DBShardRouter spreads data over several databases, one <code>DBPool</code> per shard,
+ * and maps each shard key to a shard by consistent hashing. Every shard owns
+ * <code>virtualNodes</code> points on a hash ring, and a key belongs to the shard owning
+ * the first point at or after the key's hash. Points are derived from the shard names,
+ * so adding or removing a shard moves only the keys that belong on it, about
+ * <code>1/N</code> of them.
+ * <pre>
+ * DBConnection connection = router.getConnection(customerId);
+ * try {
+ *     ...
+ * } finally {
+ *     router.returnConnection(connection);
+ * }
+ * </pre>
+ * Queries without a shard key run on every shard through <code>scatterGather</code>,
+ * which runs the task concurrently on a <code>DBFanOutExecutor</code> per shard and
+ * merges the per-shard results, in parallel when they are sorted.
+ */
+public class DBShardRouter {
+
+    private static final Logger log = Logger.getLogger(DBShardRouter.class);
+
+    private static final int PARALLEL_MERGE_THRESHOLD = 8192;
+
+    private final String[] names;
+    private final DBPool[] pools;
+    private final DBFanOutExecutor[] executors;
+    private final long[] ring;
+    private final int[] owners;
+
+    /**
+     * @param shards          the shard pools by stable shard name, in shard order
+     * @param virtualNodes    the number of ring points per shard; 100 to 200 keep each
+     *                        shard's share of keys within about 15% of even
+     * @param maxConcurrency  the number of scatter-gather tasks that may run at once on
+     *                        each shard
+     */
+    public DBShardRouter(Map<String, DBPool> shards, int virtualNodes, int maxConcurrency) {
+        if (shards == null || shards.isEmpty()) throw new IllegalArgumentException("At least one shard is required");
+        if (virtualNodes < 1) throw new IllegalArgumentException("virtualNodes must be at least 1");
+        Map<String, DBPool> ordered = new LinkedHashMap<>(shards);
+        names = ordered.keySet().toArray(new String[ordered.size()]);
+        pools = ordered.values().toArray(new DBPool[ordered.size()]);
+        executors = new DBFanOutExecutor[pools.length];
+        for (int i = 0; i < pools.length; i++) {
+            if (pools[i] == null) throw new IllegalArgumentException("Pool of shard " + names[i] + " cannot be null");
+            executors[i] = new DBFanOutExecutor(pools[i], maxConcurrency);
+        }
+
+        long[][] points = new long[pools.length * virtualNodes][];
+        for (int shard = 0, p = 0; shard < pools.length; shard++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                points[p++] = new long[]{hash(names[shard] + "#" + v), shard};
+            }
+        }
+        Arrays.sort(points, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        ring = new long[points.length];
+        owners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ring[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+        log.info("Shard router over " + pools.length + " shards with " + virtualNodes + " virtual nodes each");
+    }
+
+    public DBShardRouter(Map<String, DBPool> shards) {
+        this(shards, 160, 4);
+    }
+
+    public int getShardCount() {
+        return pools.length;
+    }
+
+    public List<String> getShardNames() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * Returns the index of the shard that owns the key. Keys are compared by value, so
+     * <code>42</code>, <code>42L</code>, <code>new BigDecimal("42.0")</code> and
+     * <code>"42"</code> all belong to the same shard. Temporal keys are compared by the
+     * instant or the calendar value they stand for, never by the JVM's time zone.
+     *
+     * @throws IllegalArgumentException if the key's type has no stable text form; see
+     *                                  <code>canonical</code>
+     */
+    public int getShard(Object key) {
+        if (key == null) throw new IllegalArgumentException("Shard key cannot be null");
+        long h = hash(canonical(key));
+        int i = Arrays.binarySearch(ring, h);
+        if (i < 0) i = -i - 1;
+        return owners[i == ring.length ? 0 : i];
+    }
+
+    public String getShardName(Object key) {
+        return names[getShard(key)];
+    }
+
+    public DBPool getPool(Object key) {
+        return pools[getShard(key)];
+    }
+
+    /**
+     * Borrows a connection from the shard that owns the key. Give it back with
+     * <code>returnConnection</code>.
+     */
+    public DBConnection getConnection(Object key) throws SQLException {
+        return DBPools.borrow(getPool(key));
+    }
+
+    public void returnConnection(DBConnection connection) {
+        DBPools.release(connection.getPool(), connection);
+    }
+
+    /**
+     * Runs the task on every shard and concatenates the results in shard order.
+     */
+    public <T> List<T> scatterGather(DBTask<? extends List<T>> task, long timeoutMillis) throws SQLException {
+        return scatterGather(task, null, timeoutMillis);
+    }
+
+    /**
+     * Runs the task on every shard and merges the results. If a comparator is given,
+     * each shard's result must be sorted by it, and the merged list is sorted too.
+     *
+     * @throws SQLTimeoutException if a shard has not answered by the deadline
+     * @throws SQLException        the first failure reported by any shard; the other
+     *                             shards are cancelled
+     */
+    public <T> List<T> scatterGather(DBTask<? extends List<T>> task, Comparator<? super T> comparator,
+                                     long timeoutMillis) throws SQLException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<Future<List<T>>> futures = new ArrayList<>(pools.length);
+        BlockingQueue<Future<List<T>>> completions = new LinkedBlockingQueue<>();
+        List<DBTask<List<T>>> tasks = Collections.singletonList(adapt(task));
+        for (DBFanOutExecutor executor : executors) {
+            futures.add(executor.submitAll(tasks, timeoutMillis, completions).get(0));
+        }
+        // results are collected as shards answer, so a failure on any shard is seen at once
+        List<List<T>> results = new ArrayList<>(Collections.<List<T>>nCopies(pools.length, null));
+        int answered = 0;
+        try {
+            while (answered < futures.size()) {
+                long remaining = deadline - System.currentTimeMillis();
+                Future<List<T>> future = remaining > 0 ? completions.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (future == null) {
+                    throw new SQLTimeoutException("Shards " + pending(futures) + " did not answer within " + timeoutMillis + " ms");
+                }
+                int shard = futures.indexOf(future);
+                try {
+                    results.set(shard, future.get());
+                    answered++;
+                } catch (CancellationException e) {
+                    throw new SQLException("Query on shard " + names[shard] + " was cancelled");
+                } catch (ExecutionException e) {
+                    log.warn("Scatter-gather query failed on shard " + names[shard]);
+                    throw DBFanOutExecutor.toSQLException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for shards", e);
+        } finally {
+            if (answered < futures.size()) {
+                for (Future<List<T>> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+        if (comparator == null) {
+            int size = 0;
+            for (List<T> result : results) size += result.size();
+            List<T> merged = new ArrayList<>(size);
+            for (List<T> result : results) merged.addAll(result);
+            return merged;
+        }
+        return ForkJoinPool.commonPool().invoke(new MergeTask<T>(results, 0, results.size(), comparator));
+    }
+
+    /**
+     * Stops the scatter-gather executors. Running tasks are allowed to finish.
+     */
+    public void shutdown() {
+        for (DBFanOutExecutor executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    private String pending(List<? extends Future<?>> futures) {
+        List<String> pending = new ArrayList<>();
+        for (int shard = 0; shard < futures.size(); shard++) {
+            if (!futures.get(shard).isDone()) pending.add(names[shard]);
+        }
+        return pending.toString();
+    }
+
+    private static <T> DBTask<List<T>> adapt(final DBTask<? extends List<T>> task) {
+        return new DBTask<List<T>>() {
+            public List<T> execute(DBConnection connection, int timeoutSecs) throws SQLException {
+                List<T> result = task.execute(connection, timeoutSecs);
+                if (result == null) return Collections.emptyList();
+                return result instanceof RandomAccess ? result : new ArrayList<>(result);
+            }
+        };
+    }
+
+    /**
+     * The text a key is hashed by, which must be the same on every node:
+     * <ul>
+     * <li>numbers in plain decimal form without trailing zeros;</li>
+     * <li>strings, characters, booleans and UUIDs by <code>toString</code>, enums by name;</li>
+     * <li><code>java.util.Date</code>, <code>Timestamp</code>, <code>Instant</code> and
+     * zoned or offset date-times as the ISO-8601 UTC instant, with nanoseconds;</li>
+     * <li><code>java.sql.Date</code>, <code>java.sql.Time</code> and the local
+     * <code>java.time</code> types as their ISO-8601 calendar value, since they carry no
+     * zone of their own.</li>
+     * </ul>
+     * Other types, whose <code>toString</code> may depend on the JVM, are rejected.
+     */
+    static String canonical(Object key) {
+        if (key instanceof BigDecimal || key instanceof Double || key instanceof Float) {
+            double d = ((Number) key).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) return key.toString();
+            BigDecimal value = key instanceof BigDecimal ? (BigDecimal) key : new BigDecimal(key.toString());
+            return value.signum() == 0 ? "0" : value.stripTrailingZeros().toPlainString();
+        }
+        if (key instanceof Integer || key instanceof Long || key instanceof Short || key instanceof Byte
+                || key instanceof BigInteger || key instanceof AtomicInteger || key instanceof AtomicLong
+                || key instanceof CharSequence || key instanceof Character || key instanceof Boolean
+                || key instanceof UUID) {
+            return key.toString();
+        }
+        if (key instanceof Enum) return ((Enum<?>) key).name();
+        // java.sql.Date and Time first: their toInstant is unsupported, and their millis
+        // depend on the zone they were created in while the calendar value does not
+        if (key instanceof java.sql.Date) return ((java.sql.Date) key).toLocalDate().toString();
+        if (key instanceof Time) return ((Time) key).toLocalTime().toString();
+        if (key instanceof Timestamp) return ((Timestamp) key).toInstant().toString();
+        if (key instanceof java.util.Date) return Instant.ofEpochMilli(((java.util.Date) key).getTime()).toString();
+        if (key instanceof Instant) return key.toString();
+        if (key instanceof OffsetDateTime) return ((OffsetDateTime) key).toInstant().toString();
+        if (key instanceof ZonedDateTime) return ((ZonedDateTime) key).toInstant().toString();
+        if (key instanceof LocalDate || key instanceof LocalDateTime || key instanceof LocalTime) return key.toString();
+        throw new IllegalArgumentException("Shard key of type " + key.getClass().getName() + " has no stable form");
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, finished with a 64-bit mixer so that similar strings
+     * land far apart on the ring.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Merges sorted lists by splitting them in halves, merging each half in parallel
+     * and then merging the two results.
+     */
+    private static class MergeTask<T> extends RecursiveTask<List<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<List<T>> lists;
+        private final int from;
+        private final int to;
+        private final Comparator<? super T> comparator;
+
+        MergeTask(List<List<T>> lists, int from, int to, Comparator<? super T> comparator) {
+            this.lists = lists;
+            this.from = from;
+            this.to = to;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (to - from == 0) return new ArrayList<>();
+            if (to - from == 1) return lists.get(from);
+            int mid = (from + to) >>> 1;
+            MergeTask<T> left = new MergeTask<>(lists, from, mid, comparator);
+            MergeTask<T> right = new MergeTask<>(lists, mid, to, comparator);
+            List<T> a;
+            List<T> b;
+            if (size(from, to) >= PARALLEL_MERGE_THRESHOLD) {
+                left.fork();
+                b = right.compute();
+                a = left.join();
+            } else {
+                a = left.compute();
+                b = right.compute();
+            }
+            return merge(a, b);
+        }
+
+        private int size(int from, int to) {
+            int size = 0;
+            for (int i = from; i < to; i++) size += lists.get(i).size();
+            return size;
+        }
+
+        private List<T> merge(List<T> a, List<T> b) {
+            List<T> merged = new ArrayList<>(a.size() + b.size());
+            int i = 0;
+            int j = 0;
+            while (i < a.size() && j < b.size()) {
+                // take from the left on ties so that equal rows stay in shard order
+                if (comparator.compare(b.get(j), a.get(i)) < 0) {
+                    merged.add(b.get(j++));
+                } else {
+                    merged.add(a.get(i++));
+                }
+            }
+            while (i < a.size()) merged.add(a.get(i++));
+            while (j < b.size()) merged.add(b.get(j++));
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package foundation.db;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * DBSpillingResultSet presents a scrollable, read-only <code>ResultSet</code> over a
+ * forward-only one. Rows are copied into a <code>DBRowStore</code> as the cursor reaches
+ * them, which keeps up to a memory budget on the heap and spills the rest to a
+ * memory-mapped file. Use it instead of asking the driver for
+ * <code>TYPE_SCROLL_INSENSITIVE</code>, which makes many drivers buffer the whole result
+ * on the heap:
+ * <pre>
+ * Statement stmt = connection.createStatement();   // forward-only
+ * ResultSet rs = DBSpillingResultSet.wrap(stmt.executeQuery(sql), 16 * 1024 * 1024, null);
+ * rs.absolute(5000);
+ * </pre>
+ * Moving to the last row, or to a row counted from the end, reads the rest of the source.
+ * Once the source is exhausted it is closed, releasing its driver resources early.
+ * Closing this result set closes the source and deletes the spill file.
+ */
+public class DBSpillingResultSet extends DBReadOnlyResultSet {
+
+    private final ResultSet source;
+    private final Statement statement;
+    private final DBRowStore store;
+    private final boolean ownsStore;
+    private final Object[] values;
+    private boolean sourceDone;
+    private int position = 0;
+    private int decodedRow = 0;
+    private boolean closed = false;
+
+    private DBSpillingResultSet(ResultSet source, Statement statement, DBRowStore store, boolean ownsStore) {
+        this.source = source;
+        this.statement = statement;
+        this.store = store;
+        this.ownsStore = ownsStore;
+        this.sourceDone = source == null;
+        this.values = new Object[store.getColumnCount()];
+    }
+
+    /**
+     * A cursor over rows already in the store. The store is shared and is not closed with
+     * this result set.
+     */
+    public DBSpillingResultSet(DBRowStore store) {
+        this(null, null, store, false);
+    }
+
+    /**
+     * Wraps a forward-only result set.
+     *
+     * @param memoryBudget the number of bytes of rows kept on the heap before spilling
+     * @param directory    where the spill file is created, or <code>null</code> for
+     *                     <code>java.io.tmpdir</code>
+     */
+    public static DBSpillingResultSet wrap(ResultSet source, long memoryBudget, File directory) throws SQLException {
+        return new DBSpillingResultSet(source, source.getStatement(), new DBRowStore(source, memoryBudget, directory), true);
+    }
+
+    /**
+     * Whether rows beyond the memory budget have been written to disk.
+     */
+    public boolean isSpilled() {
+        return store.isSpilled();
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) throw new SQLException("Result set is closed");
+    }
+
+    /**
+     * Copies rows from the source until the store holds at least <code>rows</code> rows
+     * or the source is exhausted.
+     */
+    private void load(int rows) throws SQLException {
+        while (!sourceDone && store.getRowCount() < rows) {
+            if (source.next()) {
+                store.append(source);
+            } else {
+                sourceDone = true;
+                source.close();
+            }
+        }
+    }
+
+    private int loadAll() throws SQLException {
+        load(Integer.MAX_VALUE);
+        return store.getRowCount();
+    }
+
+    private boolean moveTo(int row) throws SQLException {
+        checkOpen();
+        if (row <= 0) {
+            position = 0;
+            return false;
+        }
+        load(row);
+        int count = store.getRowCount();
+        if (row > count) {
+            position = count + 1;
+            return false;
+        }
+        position = row;
+        return true;
+    }
+
+    @Override
+    protected Object getValue(int columnIndex) throws SQLException {
+        checkOpen();
+        if (position < 1 || position > store.getRowCount()) throw new SQLException("No current row", "24000");
+        if (columnIndex < 1 || columnIndex > values.length) {
+            throw new SQLException("Column index " + columnIndex + " out of range 1.." + values.length, "07009");
+        }
+        if (decodedRow != position) {
+            store.read(position - 1, values);
+            decodedRow = position;
+        }
+        return values[columnIndex - 1];
+    }
+
+    public boolean next() throws SQLException {
+        return moveTo(position + 1);
+    }
+
+    public boolean previous() throws SQLException {
+        checkOpen();
+        return moveTo(Math.min(position, store.getRowCount() + 1) - 1);
+    }
+
+    public boolean first() throws SQLException {
+        return moveTo(1);
+    }
+
+    public boolean last() throws SQLException {
+        checkOpen();
+        int count = loadAll();
+        return count > 0 ? moveTo(count) : moveTo(0);
+    }
+
+    public void beforeFirst() throws SQLException {
+        moveTo(0);
+    }
+
+    public void afterLast() throws SQLException {
+        checkOpen();
+        position = loadAll() + 1;
+    }
+
+    public boolean absolute(int row) throws SQLException {
+        checkOpen();
+        if (row >= 0) return moveTo(row);
+        return moveTo(loadAll() + 1 + row);
+    }
+
+    public boolean relative(int rows) throws SQLException {
+        checkOpen();
+        long target = (long) Math.min(position, store.getRowCount() + 1) + rows;
+        return moveTo((int) Math.max(0, Math.min(Integer.MAX_VALUE, target)));
+    }
+
+    public boolean isBeforeFirst() throws SQLException {
+        checkOpen();
+        load(1);
+        return position == 0 && store.getRowCount() > 0;
+    }
+
+    public boolean isAfterLast() throws SQLException {
+        checkOpen();
+        return position > 0 && position > store.getRowCount() && store.getRowCount() > 0;
+    }
+
+    public boolean isFirst() throws SQLException {
+        checkOpen();
+        return position == 1 && store.getRowCount() >= 1;
+    }
+
+    public boolean isLast() throws SQLException {
+        checkOpen();
+        if (position < 1 || position > store.getRowCount()) return false;
+        load(position + 1);
+        return position == store.getRowCount();
+    }
+
+    public int getRow() throws SQLException {
+        checkOpen();
+        return position >= 1 && position <= store.getRowCount() ? position : 0;
+    }
+
+    public int getType() throws SQLException {
+        return TYPE_SCROLL_INSENSITIVE;
+    }
+
+    public Statement getStatement() throws SQLException {
+        return statement;
+    }
+
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return store.getMetaData();
+    }
+
+    public int findColumn(String columnLabel) throws SQLException {
+        return store.getMetaData().findColumn(columnLabel);
+    }
+
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    public void close() throws SQLException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (!sourceDone) source.close();
+        } finally {
+            if (ownsStore) store.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package foundation.db;
+
+/**
+ * The normalized form of a SQL statement together with facts that are worked out once
+ * when it is registered: a compact id and what kind of statement it is. Instances are
+ * obtained from <code>DBSqlFingerprints</code>, which also counts the <code>?</code>
+ * parameters of each raw SQL string, since statements sharing a fingerprint may differ
+ * in which values are literals and which are parameters.
+ */
+public final class DBSqlFingerprint {
+
+    public enum Kind {
+        READ, WRITE, CALL, DDL, OTHER;
+
+        public boolean isReadOnly() {
+            return this == READ;
+        }
+    }
+
+    private final int id;
+    private final String normalizedSql;
+    private final Kind kind;
+    volatile long lastAccess;
+
+    DBSqlFingerprint(int id, String normalizedSql, Kind kind, long lastAccess) {
+        this.id = id;
+        this.normalizedSql = normalizedSql;
+        this.kind = kind;
+        this.lastAccess = lastAccess;
+    }
+
+    /**
+     * The id of this fingerprint. Ids are never reused; a statement evicted from the
+     * registry and registered again gets a new id.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * The SQL with literals replaced by <code>?</code>, whitespace collapsed and
+     * everything outside quoted identifiers in lower case.
+     */
+    public String getNormalizedSql() {
+        return normalizedSql;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isReadOnly() {
+        return kind.isReadOnly();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DBSqlFingerprint && ((DBSqlFingerprint) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + normalizedSql;
+    }
+}
@@ -0,0 +1,383 @@
+package foundation.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DBSqlFingerprints is a registry, shared across connections, that maps SQL text to a
+ * <code>DBSqlFingerprint</code>. The SQL is normalized once, when a statement is first
+ * seen; after that a lookup by the same SQL string costs one hash map probe, and
+ * statements that differ only in literals or whitespace share a fingerprint and id.
+ * <p/>
+ * The registry holds at most <code>maxEntries</code> fingerprints. When it grows past
+ * that, the least recently used tenth is evicted. Recency is kept to the nearest
+ * <code>ACCESS_RESOLUTION_MILLIS</code>, so hot statements do not write to shared memory
+ * on every lookup.
+ */
+public class DBSqlFingerprints {
+
+    private static final Logger log = Logger.getLogger(DBSqlFingerprints.class);
+
+    private static final DBSqlFingerprints instance = new DBSqlFingerprints(10000);
+
+    private static final long ACCESS_RESOLUTION_MILLIS = 100;
+
+    private final ConcurrentHashMap<String, SqlEntry> bySql = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DBSqlFingerprint> byNormalizedSql = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, DBSqlFingerprint> byId = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private volatile int maxEntries;
+
+    public DBSqlFingerprints(int maxEntries) {
+        setMaxEntries(maxEntries);
+    }
+
+    public static DBSqlFingerprints getInstance() {
+        return instance;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the fingerprint for the given SQL, registering it if it has not been seen.
+     */
+    public DBSqlFingerprint lookup(String sql) {
+        return entry(sql).fingerprint;
+    }
+
+    /**
+     * Returns the number of <code>?</code> parameters in the given SQL, registering it if
+     * it has not been seen.
+     */
+    public int getParameterCount(String sql) {
+        return entry(sql).parameterCount;
+    }
+
+    /**
+     * Returns the fingerprint with the given id, or <code>null</code> if it was evicted.
+     */
+    public DBSqlFingerprint get(int id) {
+        return byId.get(id);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public void clear() {
+        evictionLock.lock();
+        try {
+            bySql.clear();
+            byNormalizedSql.clear();
+            byId.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private SqlEntry entry(String sql) {
+        if (sql == null) throw new IllegalArgumentException("SQL cannot be null");
+        SqlEntry entry = bySql.get(sql);
+        if (entry == null) {
+            entry = register(sql);
+        }
+        long now = System.currentTimeMillis();
+        if (now - entry.fingerprint.lastAccess > ACCESS_RESOLUTION_MILLIS) entry.fingerprint.lastAccess = now;
+        return entry;
+    }
+
+    private SqlEntry register(String sql) {
+        String normalized = normalize(sql);
+        DBSqlFingerprint fingerprint = byNormalizedSql.get(normalized);
+        if (fingerprint == null) {
+            DBSqlFingerprint created = new DBSqlFingerprint(nextId.incrementAndGet(), normalized,
+                    classify(normalized), System.currentTimeMillis());
+            fingerprint = byNormalizedSql.putIfAbsent(normalized, created);
+            if (fingerprint == null) {
+                fingerprint = created;
+                byId.put(created.getId(), created);
+            }
+        }
+        SqlEntry entry = new SqlEntry(fingerprint, countParameters(sql));
+        SqlEntry existing = bySql.putIfAbsent(sql, entry);
+        if (byId.size() > maxEntries || bySql.size() > maxSqlEntries()) evict();
+        return existing == null ? entry : existing;
+    }
+
+    private void evict() {
+        if (!evictionLock.tryLock()) return;
+        try {
+            int target = 0;
+            if (byId.size() > maxEntries) {
+                List<DBSqlFingerprint> entries = new ArrayList<>(byId.values());
+                Collections.sort(entries, new Comparator<DBSqlFingerprint>() {
+                    public int compare(DBSqlFingerprint a, DBSqlFingerprint b) {
+                        return Long.compare(a.lastAccess, b.lastAccess);
+                    }
+                });
+                target = Math.min(entries.size(), entries.size() - maxEntries + Math.max(1, maxEntries / 10));
+                for (int i = 0; i < target; i++) {
+                    DBSqlFingerprint evicted = entries.get(i);
+                    byId.remove(evicted.getId());
+                    byNormalizedSql.remove(evicted.getNormalizedSql(), evicted);
+                }
+            }
+            for (Iterator<Map.Entry<String, SqlEntry>> it = bySql.entrySet().iterator(); it.hasNext(); ) {
+                if (!byId.containsKey(it.next().getValue().fingerprint.getId())) it.remove();
+            }
+            // statements with inlined literals add raw SQL strings without adding fingerprints
+            if (bySql.size() > maxSqlEntries()) bySql.clear();
+            if (log.isDebugEnabled()) log.debug("Evicted " + target + " SQL fingerprints, " + byId.size() + " left");
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private int maxSqlEntries() {
+        return maxEntries * 4;
+    }
+
+    /**
+     * Replaces string and numeric literals with <code>?</code>, drops comments, collapses
+     * whitespace (dropping it around operators and punctuation) and lower-cases everything
+     * outside quoted identifiers.
+     */
+    static String normalize(String sql) {
+        int length = sql.length();
+        StringBuilder out = new StringBuilder(length);
+        boolean pendingSpace = false;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = out.length() > 0;
+                i++;
+                continue;
+            }
+            if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                while (i < length && sql.charAt(i) != '\n') i++;
+                pendingSpace = out.length() > 0;
+                continue;
+            }
+            if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+                pendingSpace = out.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                // keep a space only where it separates two words, so "a = 1" and "a=1" match
+                if (isWordChar(out.charAt(out.length() - 1)) && isWordChar(c)) out.append(' ');
+                pendingSpace = false;
+            }
+            if (c == '\'' || ((c == 'N' || c == 'n') && i + 1 < length && sql.charAt(i + 1) == '\''
+                    && !isIdentifierPart(out))) {
+                i = skipString(sql, c == '\'' ? i : i + 1);
+                out.append('?');
+            } else if (c == '"' || c == '[') {
+                int end = sql.indexOf(c == '"' ? '"' : ']', i + 1);
+                end = end < 0 ? length : end + 1;
+                out.append(sql, i, end);
+                i = end;
+            } else if (Character.isDigit(c) && !isIdentifierPart(out)) {
+                i = skipNumber(sql, i);
+                out.append('?');
+            } else {
+                out.append(Character.toLowerCase(c));
+                i++;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Counts the <code>?</code> placeholders outside literals, identifiers and comments.
+     */
+    static int countParameters(String sql) {
+        int count = 0;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                i = skipString(sql, i);
+            } else if (c == '"' || c == '[') {
+                int end = sql.indexOf(c == '"' ? '"' : ']', i + 1);
+                i = end < 0 ? length : end + 1;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                while (i < length && sql.charAt(i) != '\n') i++;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            } else {
+                if (c == '?') count++;
+                i++;
+            }
+        }
+        return count;
+    }
+
+    static DBSqlFingerprint.Kind classify(String normalized) {
+        List<String> words = words(normalized);
+        String keyword = words.isEmpty() ? "" : words.get(0);
+        switch (keyword) {
+            case "select":
+                return writes(words, false) ? DBSqlFingerprint.Kind.WRITE : DBSqlFingerprint.Kind.READ;
+            case "with":
+                return writes(words, true) ? DBSqlFingerprint.Kind.WRITE : DBSqlFingerprint.Kind.READ;
+            case "insert":
+            case "update":
+            case "delete":
+            case "merge":
+                return DBSqlFingerprint.Kind.WRITE;
+            case "exec":
+            case "execute":
+            case "call":
+                return DBSqlFingerprint.Kind.CALL;
+            case "create":
+            case "alter":
+            case "drop":
+            case "truncate":
+                return DBSqlFingerprint.Kind.DDL;
+            default:
+                return DBSqlFingerprint.Kind.OTHER;
+        }
+    }
+
+    /**
+     * Whether a query writes or takes write locks: <code>SELECT ... INTO</code>, locking
+     * clauses such as <code>FOR UPDATE</code> and <code>LOCK IN SHARE MODE</code>, and
+     * lock hints such as <code>UPDLOCK</code>. With <code>dml</code>, as in a
+     * <code>WITH</code> statement, any DML keyword counts too.
+     */
+    private static boolean writes(List<String> words, boolean dml) {
+        for (int i = 1; i < words.size(); i++) {
+            String next = i + 1 < words.size() ? words.get(i + 1) : "";
+            switch (words.get(i)) {
+                case "into":
+                case "updlock":
+                case "xlock":
+                case "holdlock":
+                case "tablockx":
+                    return true;
+                case "for":
+                    // for update, for no key update, for share, for key share
+                    if (next.equals("update") || next.equals("no") || next.equals("share") || next.equals("key")) return true;
+                    break;
+                case "lock":
+                    if (next.equals("in")) return true;
+                    break;
+                case "insert":
+                case "update":
+                case "delete":
+                case "merge":
+                    if (dml) return true;
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits normalized SQL into its unquoted words, so that keywords are matched whole
+     * and never inside identifiers such as <code>last_update</code>.
+     */
+    private static List<String> words(String normalized) {
+        List<String> words = new ArrayList<>();
+        int length = normalized.length();
+        int i = 0;
+        while (i < length) {
+            char c = normalized.charAt(i);
+            if (c == '"' || c == '[') {
+                int end = normalized.indexOf(c == '"' ? '"' : ']', i + 1);
+                i = end < 0 ? length : end + 1;
+            } else if (isIdentifierChar(c)) {
+                int start = i;
+                while (i < length && isIdentifierChar(normalized.charAt(i))) i++;
+                words.add(normalized.substring(start, i));
+            } else {
+                i++;
+            }
+        }
+        return words;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '@' || c == '#' || c == '$'
+                || c == '?' || c == '\'' || c == '"' || c == '[' || c == ']';
+    }
+
+    private static boolean isIdentifierPart(StringBuilder out) {
+        return out.length() > 0 && isIdentifierChar(out.charAt(out.length() - 1));
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '@' || c == '#' || c == '$';
+    }
+
+    private static int skipString(String sql, int quote) {
+        int i = quote + 1;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == '\'') {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipNumber(String sql, int start) {
+        int i = start;
+        if (sql.startsWith("0x", i) || sql.startsWith("0X", i)) {
+            i += 2;
+            while (i < sql.length() && Character.digit(sql.charAt(i), 16) >= 0) i++;
+            return i;
+        }
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (Character.isDigit(c) || c == '.') {
+                i++;
+            } else if ((c == 'e' || c == 'E') && i + 1 < sql.length()
+                    && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '-' || sql.charAt(i + 1) == '+')) {
+                i += 2;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * A raw SQL string's fingerprint and its own parameter count.
+     */
+    private static final class SqlEntry {
+        final DBSqlFingerprint fingerprint;
+        final int parameterCount;
+
+        SqlEntry(DBSqlFingerprint fingerprint, int parameterCount) {
+            this.fingerprint = fingerprint;
+            this.parameterCount = parameterCount;
+        }
+    }
+}
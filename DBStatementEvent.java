@@ -0,0 +1,56 @@
+package foundation.db;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event for a statement executed through this package. The
+ * <code>rows</code> field holds the rows read for queries and the update count for
+ * updates and batches.
+ */
+@Name("foundation.db.Statement")
+@Label("DB Statement")
+@Category({"Database", "Statement"})
+@Description("A SQL statement executed through foundation.db")
+@Threshold("20 ms")
+public class DBStatementEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("SQL")
+    String sql;
+
+    @Label("SQL Fingerprint")
+    @Description("Id of the statement in DBSqlFingerprints")
+    int fingerprint;
+
+    @Label("SPID")
+    String spid;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    /**
+     * Commits the event if it ran past the threshold.
+     */
+    void end(String operation, String sql, DBConnection connection, long rows, boolean succeeded) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.sql = sql;
+            this.fingerprint = sql == null ? 0 : DBSqlFingerprints.getInstance().lookup(sql).getId();
+            this.spid = connection == null ? null : connection.getSpid();
+            this.rows = rows;
+            this.succeeded = succeeded;
+            commit();
+        }
+    }
+}
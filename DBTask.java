@@ -0,0 +1,24 @@
+package foundation.db;
+
+import java.sql.SQLException;
+
+/**
+ * A unit of database work that runs against a single <code>DBConnection</code>.
+ * Executors in this package borrow the connection, hand it to the task and
+ * return it to its pool afterwards, so a task must not close the connection.
+ *
+ * @param <T> the type of result produced by the task
+ */
+public interface DBTask<T> {
+
+    /**
+     * Runs the task.
+     *
+     * @param connection  the connection to run against
+     * @param timeoutSecs the number of seconds left before the caller's deadline;
+     *                    tasks should pass it to <code>Statement.setQueryTimeout</code>
+     * @return the task result
+     * @throws SQLException if a database access error occurs
+     */
+    T execute(DBConnection connection, int timeoutSecs) throws SQLException;
+}
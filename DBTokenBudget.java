@@ -0,0 +1,43 @@
+package foundation.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that bounds extra work, such as retries or hedged queries, to a
+ * fraction of ordinary work. Each <code>deposit</code> earns <code>ratio</code> tokens,
+ * up to <code>maxTokens</code>; each <code>withdraw</code> spends one. Tokens are kept in
+ * thousandths so that small ratios accumulate exactly.
+ */
+final class DBTokenBudget {
+    private final AtomicLong milliTokens = new AtomicLong();
+    private volatile long depositMilli;
+    private volatile long maxMilli;
+
+    DBTokenBudget(double ratio, int maxTokens) {
+        configure(ratio, maxTokens);
+        milliTokens.set(maxMilli);
+    }
+
+    void configure(double ratio, int maxTokens) {
+        if (ratio < 0) throw new IllegalArgumentException("ratio must not be negative");
+        if (maxTokens < 1) throw new IllegalArgumentException("maxTokens must be at least 1");
+        depositMilli = Math.round(ratio * 1000);
+        maxMilli = maxTokens * 1000L;
+    }
+
+    void deposit() {
+        while (true) {
+            long current = milliTokens.get();
+            long next = Math.min(maxMilli, current + depositMilli);
+            if (next == current || milliTokens.compareAndSet(current, next)) return;
+        }
+    }
+
+    boolean withdraw() {
+        while (true) {
+            long current = milliTokens.get();
+            if (current < 1000) return false;
+            if (milliTokens.compareAndSet(current, current - 1000)) return true;
+        }
+    }
+}
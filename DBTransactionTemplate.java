@@ -0,0 +1,196 @@
+package foundation.db;
+
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import foundation.util.AppEnv;
+
+/**
+ * DBTransactionTemplate runs a <code>DBTask</code> in a transaction on a connection from
+ * a <code>DBPool</code>, committing on success and rolling back on failure.
+ * <p/>
+ * Work passed to <code>executeIdempotent</code> is retried when the failure is a
+ * deadlock, a transient contention error or a lost connection, as decided by a
+ * <code>DBSQLExceptionClassifier</code>. Retries wait a random time of up to
+ * <code>baseBackoffMillis * 2^attempt</code> (capped at <code>maxBackoffMillis</code>) so
+ * that callers who failed together do not retry together, and they draw from a retry
+ * budget that is refilled by successful transactions, so a contention spike cannot
+ * multiply the load on the database. Connections that fail with a broken-connection
+ * error are flagged with <code>setBadConnection(true)</code> before they go back to the pool.
+ */
+public class DBTransactionTemplate {
+
+    private static final Logger log = Logger.getLogger(DBTransactionTemplate.class);
+
+    private final DBPool pool;
+    private DBSQLExceptionClassifier classifier = new DBSQLExceptionClassifier();
+    private int maxAttempts = 4;
+    private long baseBackoffMillis = 20;
+    private long maxBackoffMillis = 2000;
+    private final DBTokenBudget budget = new DBTokenBudget(0.1, 10);
+
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retriesDenied = new AtomicLong();
+    private final Map<DBSQLExceptionClassifier.Category, AtomicLong> failuresByCategory =
+            new EnumMap<>(DBSQLExceptionClassifier.Category.class);
+
+    public DBTransactionTemplate(DBPool pool) {
+        if (pool == null) throw new IllegalArgumentException("Pool cannot be null");
+        this.pool = pool;
+        for (DBSQLExceptionClassifier.Category category : DBSQLExceptionClassifier.Category.values()) {
+            failuresByCategory.put(category, new AtomicLong());
+        }
+    }
+
+    public DBSQLExceptionClassifier getClassifier() {
+        return classifier;
+    }
+
+    public void setClassifier(DBSQLExceptionClassifier classifier) {
+        if (classifier == null) throw new IllegalArgumentException("Classifier cannot be null");
+        this.classifier = classifier;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be at least 1");
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getBaseBackoffMillis() {
+        return baseBackoffMillis;
+    }
+
+    public void setBaseBackoffMillis(long baseBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Sets the retry budget: each successful transaction earns <code>ratio</code> retries,
+     * and up to <code>maxTokens</code> unused retries are kept for bursts.
+     */
+    public void setRetryBudget(double ratio, int maxTokens) {
+        budget.configure(ratio, maxTokens);
+    }
+
+    /**
+     * Runs the work once in a transaction. Use this for work that must not be repeated.
+     */
+    public <T> T execute(DBTask<T> work) throws SQLException {
+        return run(work, false);
+    }
+
+    /**
+     * Runs the work in a transaction, retrying it on retryable failures. The work must
+     * be safe to run again after a rollback.
+     */
+    public <T> T executeIdempotent(DBTask<T> work) throws SQLException {
+        return run(work, true);
+    }
+
+    public long getTransactions() {
+        return transactions.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getRetriesDenied() {
+        return retriesDenied.get();
+    }
+
+    public long getFailures(DBSQLExceptionClassifier.Category category) {
+        return failuresByCategory.get(category).get();
+    }
+
+    private <T> T run(DBTask<T> work, boolean idempotent) throws SQLException {
+        transactions.incrementAndGet();
+        for (int attempt = 1; ; attempt++) {
+            DBConnection connection = DBPools.borrow(pool);
+            try {
+                connection.setAutoCommit(false);
+                T result = work.execute(connection, AppEnv.QUERY_TIMEOUT_IN_SECS);
+                connection.commit();
+                budget.deposit();
+                return result;
+            } catch (SQLException e) {
+                rollbackQuietly(connection);
+                DBSQLExceptionClassifier.Category category = classifier.classify(e);
+                failuresByCategory.get(category).incrementAndGet();
+                if (category.isConnectionBroken()) connection.setBadConnection(true);
+                if (!idempotent || !category.isRetryable() || attempt >= maxAttempts) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+                if (!budget.withdraw()) {
+                    retriesDenied.incrementAndGet();
+                    failures.incrementAndGet();
+                    log.warn("Retry budget exhausted, not retrying " + category + " on SPID " + connection.getSpid());
+                    throw e;
+                }
+                retries.incrementAndGet();
+                long backoff = backoffMillis(attempt);
+                log.warn("Retrying transaction after " + category + " on SPID " + connection.getSpid()
+                        + " (attempt " + attempt + " of " + maxAttempts + ", waiting " + backoff + " ms): " + e.getMessage());
+                DBPools.release(pool, connection);
+                connection = null;
+                sleep(backoff, e);
+            } catch (Throwable t) {
+                // errors and sneakily thrown checked exceptions too, or the connection goes
+                // back to the pool with the transaction still open
+                rollbackQuietly(connection);
+                failures.incrementAndGet();
+                throw t;
+            } finally {
+                if (connection != null) DBPools.release(pool, connection);
+            }
+        }
+    }
+
+    long backoffMillis(int attempt) {
+        long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt, 20));
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static void sleep(long millis, SQLException cause) throws SQLException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw cause;
+        }
+    }
+
+    private static void rollbackQuietly(DBConnection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException sqle) {
+            Logger.getLogger(DBTransactionTemplate.class).error("Could not roll back transaction on SPID "
+                    + connection.getSpid() + ", marking connection bad.", sqle);
+            connection.setBadConnection(true);
+        }
+    }
+}
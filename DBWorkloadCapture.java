@@ -0,0 +1,414 @@
+package foundation.db;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DBWorkloadCapture records the SQL workload of this process to a compact binary trace
+ * that <code>DBWorkloadReplay</code> can run against another database. It records every
+ * statement with its bound parameters, its timing, and the connection it ran on. It also
+ * records transaction boundaries.
+ * <pre>
+ * DBWorkloadCapture.start(new File("orders.dbtrace"));
+ * ...
+ * DBWorkloadCapture.stop();
+ * </pre>
+ * While no capture runs, each hook costs one volatile read. While a capture runs, each
+ * record is encoded on the calling thread and handed to a writer thread. If the writer
+ * falls behind, records are dropped and counted rather than slowing the application
+ * down.
+ * <p/>
+ * <code>DBConnection</code> records transaction boundaries. The executors in this
+ * package record their statements. Statement wrappers call <code>statement</code> and
+ * <code>batch</code> after each execution.
+ * <p/>
+ * Trace format, big-endian: the header is the magic number, a version short and the
+ * capture start in epoch milliseconds. Each record is a type byte, then the nanoseconds
+ * since the start, then the record fields. SQL text and connection SPIDs appear once, in
+ * definition records, and later records refer to them by number. A null parameter is
+ * written with its <code>java.sql.Types</code> type, taken from the statement's parameter
+ * metadata, or <code>Types.NULL</code> if the driver does not report it.
+ */
+public final class DBWorkloadCapture {
+
+    private static final Logger log = Logger.getLogger(DBWorkloadCapture.class);
+
+    static final int MAGIC = 0x44425743; // "DBWC"
+    static final short VERSION = 2;
+
+    static final byte DEFINE_SQL = 1;
+    static final byte DEFINE_CONNECTION = 2;
+    static final byte STATEMENT = 3;
+    static final byte BATCH = 4;
+    static final byte BEGIN = 5;
+    static final byte COMMIT = 6;
+    static final byte ROLLBACK = 7;
+
+    static final byte NULL = 0;
+    static final byte BOOLEAN = 1;
+    static final byte INT = 2;
+    static final byte LONG = 3;
+    static final byte DOUBLE = 4;
+    static final byte DECIMAL = 5;
+    static final byte STRING = 6;
+    static final byte BYTES = 7;
+    static final byte TIMESTAMP = 8;
+    static final byte DATE = 9;
+    static final byte TIME = 10;
+
+    private static final int MAX_SQL_DEFINITIONS = 200000;
+
+    private static volatile DBWorkloadCapture current = null;
+    private static final AtomicLong serials = new AtomicLong();
+
+    private final long serial = serials.incrementAndGet();
+    private final File file;
+    private final long startNanos = System.nanoTime();
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(65536);
+    private final ConcurrentHashMap<String, Integer> sqlIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextConnectionId = new AtomicInteger(1);
+    private final DataOutputStream out;
+    private final Thread writer;
+    private volatile boolean stopping = false;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private DBWorkloadCapture(File file) throws IOException {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 256 * 1024));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "DBWorkloadCapture");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Starts capturing to the given file, replacing it if it exists.
+     *
+     * @throws IllegalStateException if a capture is already running
+     */
+    public static synchronized void start(File file) throws IOException {
+        if (current != null) throw new IllegalStateException("A capture is already running to " + current.file);
+        DBWorkloadCapture capture = new DBWorkloadCapture(file);
+        capture.writer.start();
+        current = capture;
+        log.info("Capturing SQL workload to " + file);
+    }
+
+    /**
+     * Stops the running capture, if any, and waits for the trace to be written.
+     */
+    public static synchronized void stop() {
+        DBWorkloadCapture capture = current;
+        if (capture == null) return;
+        current = null;
+        capture.stopping = true;
+        try {
+            capture.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Captured " + capture.recorded.get() + " records to " + capture.file + ", dropped " + capture.dropped.get());
+    }
+
+    public static boolean isCapturing() {
+        return current != null;
+    }
+
+    /**
+     * Records one execution of a statement.
+     *
+     * @param stmt    the statement that ran, asked for the types of null parameters
+     * @param started the <code>System.nanoTime()</code> at which the execution started
+     */
+    public static void statement(DBConnection connection, PreparedStatement stmt, String sql, Object[] params,
+                                 long started, boolean succeeded) {
+        DBWorkloadCapture capture = current;
+        if (capture == null) return;
+        long finished = System.nanoTime();
+        capture.record(connection, stmt, sql, STATEMENT, params, null, started, finished - started, succeeded);
+    }
+
+    /**
+     * Records one execution of a batch, with the parameters of each row.
+     *
+     * @param stmt    the statement that ran, asked for the types of null parameters
+     * @param started the <code>System.nanoTime()</code> at which the execution started
+     */
+    public static void batch(DBConnection connection, PreparedStatement stmt, String sql, List<Object[]> rows,
+                             long started, boolean succeeded) {
+        DBWorkloadCapture capture = current;
+        if (capture == null) return;
+        long finished = System.nanoTime();
+        capture.record(connection, stmt, sql, BATCH, null, rows, started, finished - started, succeeded);
+    }
+
+    static void transaction(DBConnection connection, byte type) {
+        DBWorkloadCapture capture = current;
+        if (capture == null) return;
+        Encoder encoder = encoders.get();
+        int connectionId = capture.connectionId(connection, encoder);
+        if (connectionId == 0) return;
+        try {
+            encoder.begin(type, System.nanoTime() - capture.startNanos);
+            encoder.data.writeInt(connectionId);
+            capture.offer(encoder.finish());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void record(DBConnection connection, PreparedStatement stmt, String sql, byte type, Object[] params,
+                        List<Object[]> rows, long started, long duration, boolean succeeded) {
+        Encoder encoder = encoders.get();
+        int connectionId = connectionId(connection, encoder);
+        int sqlId = sqlId(sql, encoder);
+        if (connectionId == 0 || sqlId == 0) return;
+        try {
+            encoder.begin(type, started - startNanos);
+            DataOutputStream data = encoder.data;
+            data.writeInt(connectionId);
+            data.writeInt(sqlId);
+            data.writeLong(duration);
+            data.writeBoolean(succeeded);
+            NullTypes nullTypes = new NullTypes(stmt);
+            if (type == STATEMENT) {
+                writeParams(data, params, nullTypes);
+            } else {
+                data.writeInt(rows.size());
+                for (Object[] row : rows) {
+                    writeParams(data, row, nullTypes);
+                }
+            }
+            offer(encoder.finish());
+        } catch (IOException e) {
+            // writes go to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the number of the SQL text, defining it first if it is new. A number is
+     * published only after its definition is queued, so any record that uses it is
+     * written after the definition. Returns 0 if the definition was dropped.
+     */
+    private int sqlId(String sql, Encoder encoder) {
+        Integer id = sqlIds.get(sql);
+        if (id != null) return id;
+        synchronized (sqlIds) {
+            id = sqlIds.get(sql);
+            if (id != null) return id;
+            if (sqlIds.size() >= MAX_SQL_DEFINITIONS) {
+                dropped.incrementAndGet();
+                return 0;
+            }
+            int newId = sqlIds.size() + 1;
+            DBSqlFingerprint fingerprint = DBSqlFingerprints.getInstance().lookup(sql);
+            try {
+                encoder.begin(DEFINE_SQL, System.nanoTime() - startNanos);
+                encoder.data.writeInt(newId);
+                encoder.data.writeInt(fingerprint.getId());
+                writeString(encoder.data, sql);
+                writeString(encoder.data, fingerprint.getNormalizedSql());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (!offer(encoder.finish())) return 0;
+            sqlIds.put(sql, newId);
+            return newId;
+        }
+    }
+
+    /**
+     * Returns the number of the connection, defining it with its SPID first if it is new.
+     * A connection is used by one thread at a time, so its definition is always queued
+     * before its other records. Returns 0 if the definition was dropped.
+     * <p/>
+     * The number is kept on the connection, tagged with this capture, so the capture holds
+     * no reference to connections that have since been closed.
+     */
+    private int connectionId(DBConnection connection, Encoder encoder) {
+        int id = connection.getCaptureConnectionId(serial);
+        if (id != 0) return id;
+        int newId = nextConnectionId.getAndIncrement();
+        try {
+            encoder.begin(DEFINE_CONNECTION, System.nanoTime() - startNanos);
+            encoder.data.writeInt(newId);
+            writeString(encoder.data, String.valueOf(connection.getSpid()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (!offer(encoder.finish())) return 0;
+        connection.setCaptureConnectionId(serial, newId);
+        return newId;
+    }
+
+    private boolean offer(byte[] record) {
+        if (queue.offer(record)) {
+            recorded.incrementAndGet();
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    private void write() {
+        try {
+            while (!stopping || !queue.isEmpty()) {
+                byte[] record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record != null) out.write(record);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Workload capture writer interrupted; trace " + file + " is incomplete");
+        } catch (IOException e) {
+            log.error("Could not write workload trace " + file + ", stopping capture", e);
+            current = null;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.error("Could not close workload trace " + file, e);
+            }
+        }
+    }
+
+    private static void writeParams(DataOutputStream data, Object[] params, NullTypes nullTypes) throws IOException {
+        if (params == null) {
+            data.writeShort(0);
+            return;
+        }
+        data.writeShort(params.length);
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] == null) {
+                data.writeByte(NULL);
+                data.writeInt(nullTypes.typeOf(i + 1));
+            } else {
+                writeValue(data, params[i]);
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream data, Object value) throws IOException {
+        if (value instanceof Boolean) {
+            data.writeByte(BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            data.writeByte(INT);
+            data.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            data.writeByte(LONG);
+            data.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            data.writeByte(DOUBLE);
+            data.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal) {
+            data.writeByte(DECIMAL);
+            writeString(data, value.toString());
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            data.writeByte(BYTES);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        } else if (value instanceof Timestamp) {
+            data.writeByte(TIMESTAMP);
+            data.writeLong(((Timestamp) value).getTime());
+            data.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof java.sql.Date) {
+            data.writeByte(DATE);
+            data.writeLong(((java.sql.Date) value).getTime());
+        } else if (value instanceof Time) {
+            data.writeByte(TIME);
+            data.writeLong(((Time) value).getTime());
+        } else if (value instanceof java.util.Date) {
+            data.writeByte(TIMESTAMP);
+            data.writeLong(((java.util.Date) value).getTime());
+            data.writeInt(0);
+        } else {
+            data.writeByte(STRING);
+            writeString(data, value.toString());
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    /**
+     * Looks up the types of null parameters in the statement's parameter metadata, which
+     * some drivers build with a round trip, so at most once per record.
+     */
+    private static class NullTypes {
+        private final PreparedStatement stmt;
+        private ParameterMetaData metaData = null;
+        private boolean unavailable = false;
+
+        NullTypes(PreparedStatement stmt) {
+            this.stmt = stmt;
+        }
+
+        int typeOf(int index) {
+            if (stmt == null || unavailable) return Types.NULL;
+            try {
+                if (metaData == null) metaData = stmt.getParameterMetaData();
+                return metaData.getParameterType(index);
+            } catch (SQLException | RuntimeException e) {
+                unavailable = true;
+                return Types.NULL;
+            }
+        }
+    }
+
+    /**
+     * Per-thread buffer that records are encoded into before they are copied out.
+     */
+    private static class Encoder {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        final DataOutputStream data = new DataOutputStream(buffer);
+
+        void begin(byte type, long offsetNanos) throws IOException {
+            buffer.reset();
+            data.writeByte(type);
+            data.writeLong(offsetNanos);
+        }
+
+        byte[] finish() {
+            return buffer.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package foundation.db;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import foundation.util.AppEnv;
+
+/**
+ * DBWorkloadReplay runs a trace recorded by <code>DBWorkloadCapture</code> against a
+ * database and reports throughput and latency percentiles, next to the latencies seen
+ * when the trace was captured:
+ * <pre>
+ * java foundation.db.DBWorkloadReplay [-speed 2] [-timeout 30] orders.dbtrace jdbc:... [user] [password]
+ * </pre>
+ * Each captured connection is replayed on a connection and a thread of its own, in the
+ * order its statements ran, with its transaction boundaries. Sharing a thread between
+ * captured connections would deadlock the replay as soon as one of them waits on a lock
+ * held by an open transaction of another. Statements start at their captured time
+ * divided by <code>speed</code>; a speed of 0 runs them as fast as the workers allow.
+ * Each statement runs with a query timeout, <code>AppEnv.QUERY_TIMEOUT_IN_SECS</code>
+ * unless set. Statements that failed during capture are replayed too, and failures are
+ * counted rather than stopping the replay.
+ */
+public class DBWorkloadReplay {
+
+    private static final Logger log = Logger.getLogger(DBWorkloadReplay.class);
+
+    private static final Object[] END = new Object[0];
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private double speed = 1.0;
+    private int queryTimeoutSecs = AppEnv.QUERY_TIMEOUT_IN_SECS;
+
+    private final Histogram captured = new Histogram();
+    private final AtomicLong errors = new AtomicLong();
+
+    public DBWorkloadReplay(String url, String user, String password) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * The replay speed relative to capture: 1 for real time, 2 for twice as fast, 0 for
+     * as fast as possible.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) throw new IllegalArgumentException("speed must not be negative");
+        this.speed = speed;
+    }
+
+    /**
+     * The query timeout of each replayed statement, in seconds; 0 for none.
+     */
+    public void setQueryTimeout(int queryTimeoutSecs) {
+        if (queryTimeoutSecs < 0) throw new IllegalArgumentException("queryTimeoutSecs must not be negative");
+        this.queryTimeoutSecs = queryTimeoutSecs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        double speed = 1.0;
+        int queryTimeoutSecs = -1;
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-speed".equals(args[i]) && i + 1 < args.length) {
+                speed = Double.parseDouble(args[++i]);
+            } else if ("-timeout".equals(args[i]) && i + 1 < args.length) {
+                queryTimeoutSecs = Integer.parseInt(args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() < 2) {
+            System.err.println("Usage: DBWorkloadReplay [-speed n] [-timeout secs] trace jdbcUrl [user] [password]");
+            System.exit(2);
+        }
+        DBWorkloadReplay replay = new DBWorkloadReplay(positional.get(1),
+                positional.size() > 2 ? positional.get(2) : null,
+                positional.size() > 3 ? positional.get(3) : null);
+        replay.setSpeed(speed);
+        if (queryTimeoutSecs >= 0) replay.setQueryTimeout(queryTimeoutSecs);
+        replay.replay(new File(positional.get(0))).print(System.out);
+    }
+
+    /**
+     * Replays the trace and waits for every worker to finish.
+     */
+    public Report replay(File trace) throws IOException, InterruptedException {
+        Map<Integer, Worker> workers = new HashMap<>();
+        long started = System.nanoTime();
+        long statements = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(trace), 256 * 1024))) {
+            if (in.readInt() != DBWorkloadCapture.MAGIC) throw new IOException(trace + " is not a workload trace");
+            short version = in.readShort();
+            if (version != DBWorkloadCapture.VERSION) throw new IOException("Unsupported trace version " + version);
+            in.readLong();
+            Map<Integer, String> sql = new HashMap<>();
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                long offset = in.readLong();
+                switch (type) {
+                    case DBWorkloadCapture.DEFINE_SQL:
+                        int id = in.readInt();
+                        in.readInt();
+                        sql.put(id, readString(in));
+                        readString(in);
+                        break;
+                    case DBWorkloadCapture.DEFINE_CONNECTION:
+                        worker(workers, in.readInt(), started);
+                        readString(in);
+                        break;
+                    case DBWorkloadCapture.STATEMENT:
+                    case DBWorkloadCapture.BATCH: {
+                        int connectionId = in.readInt();
+                        String text = sql.get(in.readInt());
+                        captured.record(in.readLong() / 1000);
+                        in.readBoolean();
+                        List<Object[]> rows = new ArrayList<>(1);
+                        int count = type == DBWorkloadCapture.BATCH ? in.readInt() : 1;
+                        for (int i = 0; i < count; i++) {
+                            rows.add(readParams(in));
+                        }
+                        if (text == null) throw new IOException("Trace refers to undefined SQL");
+                        worker(workers, connectionId, started).queue.put(new Object[]{type, offset, text, rows});
+                        statements++;
+                        break;
+                    }
+                    case DBWorkloadCapture.BEGIN:
+                    case DBWorkloadCapture.COMMIT:
+                    case DBWorkloadCapture.ROLLBACK: {
+                        int connectionId = in.readInt();
+                        worker(workers, connectionId, started).queue.put(new Object[]{type, offset});
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown record type " + type + " in " + trace);
+                }
+            }
+        } finally {
+            for (Worker worker : workers.values()) {
+                worker.queue.put(END);
+            }
+        }
+        Histogram replayed = new Histogram();
+        for (Worker worker : workers.values()) {
+            worker.join();
+            replayed.add(worker.latencies);
+        }
+        return new Report(statements, errors.get(), System.nanoTime() - started, captured, replayed);
+    }
+
+    private Worker worker(Map<Integer, Worker> workers, int connectionId, long startNanos) {
+        Worker worker = workers.get(connectionId);
+        if (worker == null) {
+            worker = new Worker(connectionId, startNanos);
+            workers.put(connectionId, worker);
+            worker.start();
+        }
+        return worker;
+    }
+
+    private static Object[] readParams(DataInputStream in) throws IOException {
+        Object[] params = new Object[in.readShort()];
+        for (int i = 0; i < params.length; i++) {
+            byte type = in.readByte();
+            switch (type) {
+                case DBWorkloadCapture.NULL:
+                    params[i] = new Null(in.readInt());
+                    break;
+                case DBWorkloadCapture.BOOLEAN:
+                    params[i] = in.readBoolean();
+                    break;
+                case DBWorkloadCapture.INT:
+                    params[i] = in.readInt();
+                    break;
+                case DBWorkloadCapture.LONG:
+                    params[i] = in.readLong();
+                    break;
+                case DBWorkloadCapture.DOUBLE:
+                    params[i] = in.readDouble();
+                    break;
+                case DBWorkloadCapture.DECIMAL:
+                    params[i] = new BigDecimal(readString(in));
+                    break;
+                case DBWorkloadCapture.STRING:
+                    params[i] = readString(in);
+                    break;
+                case DBWorkloadCapture.BYTES:
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    params[i] = bytes;
+                    break;
+                case DBWorkloadCapture.TIMESTAMP:
+                    Timestamp ts = new Timestamp(in.readLong());
+                    ts.setNanos(in.readInt());
+                    params[i] = ts;
+                    break;
+                case DBWorkloadCapture.DATE:
+                    params[i] = new java.sql.Date(in.readLong());
+                    break;
+                case DBWorkloadCapture.TIME:
+                    params[i] = new Time(in.readLong());
+                    break;
+                default:
+                    throw new IOException("Unknown parameter type " + type);
+            }
+        }
+        return params;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A null parameter with the <code>java.sql.Types</code> type it was captured with.
+     */
+    static final class Null {
+        final int sqlType;
+
+        Null(int sqlType) {
+            this.sqlType = sqlType;
+        }
+    }
+
+    /**
+     * Replays one captured connection on a replay connection of its own.
+     */
+    private class Worker extends Thread {
+        final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(4096);
+        final Histogram latencies = new Histogram();
+        final long startNanos;
+        Connection connection = null;
+
+        Worker(int connectionId, long startNanos) {
+            super("DBWorkloadReplay-" + connectionId);
+            setDaemon(true);
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Object[] record = queue.take();
+                    if (record == END) break;
+                    byte type = (Byte) record[0];
+                    waitUntil((Long) record[1]);
+                    try {
+                        Connection connection = connection();
+                        if (type == DBWorkloadCapture.STATEMENT || type == DBWorkloadCapture.BATCH) {
+                            @SuppressWarnings("unchecked")
+                            List<Object[]> rows = (List<Object[]>) record[3];
+                            execute(connection, (String) record[2], rows, type == DBWorkloadCapture.BATCH);
+                        } else if (type == DBWorkloadCapture.BEGIN) {
+                            connection.setAutoCommit(false);
+                        } else if (!connection.getAutoCommit()) {
+                            if (type == DBWorkloadCapture.COMMIT) {
+                                connection.commit();
+                            } else {
+                                connection.rollback();
+                            }
+                            connection.setAutoCommit(true);
+                        }
+                    } catch (SQLException | RuntimeException e) {
+                        // keep draining the queue, or the reader blocks on it for good
+                        if (errors.incrementAndGet() <= 10) log.warn("Replayed statement failed: " + e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.warn("Replay worker interrupted");
+            } finally {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        log.error("Could not close replay connection.", e);
+                    }
+                }
+            }
+        }
+
+        private void waitUntil(long offsetNanos) throws InterruptedException {
+            if (speed == 0) return;
+            long due = startNanos + (long) (offsetNanos / speed);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        }
+
+        private Connection connection() throws SQLException {
+            if (connection == null) {
+                connection = user == null ? DriverManager.getConnection(url) : DriverManager.getConnection(url, user, password);
+            }
+            return connection;
+        }
+
+        private void execute(Connection connection, String sql, List<Object[]> rows, boolean batch) throws SQLException {
+            long started = System.nanoTime();
+            PreparedStatement stmt = connection.prepareStatement(sql);
+            try {
+                stmt.setQueryTimeout(queryTimeoutSecs);
+                if (batch) {
+                    for (Object[] row : rows) {
+                        bind(stmt, row);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                } else {
+                    bind(stmt, rows.get(0));
+                    boolean isResultSet = stmt.execute();
+                    // read every result so the replay moves the same data
+                    while (isResultSet || stmt.getUpdateCount() != -1) {
+                        if (isResultSet) {
+                            ResultSet rs = stmt.getResultSet();
+                            while (rs.next()) {
+                                // drain
+                            }
+                            rs.close();
+                        }
+                        isResultSet = stmt.getMoreResults();
+                    }
+                }
+            } finally {
+                stmt.close();
+                latencies.record((System.nanoTime() - started) / 1000);
+            }
+        }
+
+        private void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+            for (int i = 0; i < params.length; i++) {
+                if (params[i] instanceof Null) {
+                    stmt.setNull(i + 1, nullType(stmt, i + 1, ((Null) params[i]).sqlType));
+                } else {
+                    stmt.setObject(i + 1, params[i]);
+                }
+            }
+        }
+
+        /**
+         * The captured type of a null parameter or, if the capturing driver did not report
+         * one, the type the replay driver reports, falling back to <code>VARCHAR</code>.
+         */
+        private int nullType(PreparedStatement stmt, int index, int capturedType) {
+            if (capturedType != Types.NULL) return capturedType;
+            try {
+                return stmt.getParameterMetaData().getParameterType(index);
+            } catch (SQLException | RuntimeException e) {
+                return Types.VARCHAR;
+            }
+        }
+    }
+
+    /**
+     * Latencies in microseconds, in buckets of powers of two split 16 ways, which keeps
+     * percentiles within about 6% of the true value.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKETS = 16;
+
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total = 0;
+        private long max = 0;
+
+        void record(long micros) {
+            if (micros < 0) micros = 0;
+            counts[bucket(micros)]++;
+            total++;
+            if (micros > max) max = micros;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given percentile, between 0
+         * and 1.
+         */
+        long percentile(double p) {
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(max, upperBound(i));
+            }
+            return max;
+        }
+
+        private static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) return (int) micros;
+            int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (magnitude - 4)) & (SUB_BUCKETS - 1);
+            return (magnitude - 3) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int magnitude = bucket / SUB_BUCKETS + 3;
+            int sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1L) << (magnitude - 4)) - 1;
+        }
+    }
+
+    /**
+     * The outcome of a replay.
+     */
+    public static class Report {
+        private final long statements;
+        private final long errors;
+        private final long elapsedNanos;
+        private final Histogram captured;
+        private final Histogram replayed;
+
+        Report(long statements, long errors, long elapsedNanos, Histogram captured, Histogram replayed) {
+            this.statements = statements;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.captured = captured;
+            this.replayed = replayed;
+        }
+
+        public long getStatements() {
+            return statements;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : statements * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * A percentile, between 0 and 1, of replayed statement latencies in microseconds.
+         */
+        public long getLatencyMicros(double percentile) {
+            return replayed.percentile(percentile);
+        }
+
+        public void print(PrintStream out) {
+            out.printf("statements %d, errors %d, elapsed %.1f s, throughput %.1f/s%n",
+                    statements, errors, elapsedNanos / 1e9, getThroughput());
+            out.println("latency (us)      p50       p90       p99     p99.9       max");
+            line(out, "captured", captured);
+            line(out, "replayed", replayed);
+        }
+
+        private static void line(PrintStream out, String label, Histogram h) {
+            out.printf("%-10s %9d %9d %9d %9d %9d%n", label, h.percentile(0.5), h.percentile(0.9),
+                    h.percentile(0.99), h.percentile(0.999), h.getMax());
+        }
+    }
+}
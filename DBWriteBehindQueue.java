@@ -0,0 +1,354 @@
+package foundation.db;
+
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import foundation.util.AppEnv;
+
+/**
+ * DBWriteBehindQueue takes rows for a single insert statement off the request thread.
+ * Callers enqueue parameter arrays into a bounded lock-free queue; a writer thread drains
+ * them into JDBC batches of up to <code>flushSize</code> rows and commits each batch as
+ * one transaction. A batch is written once <code>flushSize</code> rows are waiting or
+ * <code>flushLatencyMillis</code> has passed, whichever comes first.
+ * <p/>
+ * <code>offer</code> is fire-and-forget and drops the row when the queue is full.
+ * <code>submit</code> waits for space and returns a future that completes once the row
+ * is committed, for callers that need durability.
+ * <p/>
+ * When the database refuses a batch because of its data, for example a constraint
+ * violation or a value too long, the batch is split in halves and each half is written
+ * again, down to single rows, so only the offending rows fail. Those are counted by
+ * <code>getRowsRefused</code> and logged with their values. Other failures, such as a
+ * lost connection, fail the whole batch.
+ */
+public class DBWriteBehindQueue {
+
+    private static final Logger log = Logger.getLogger(DBWriteBehindQueue.class);
+
+    private final DBPool pool;
+    private final String insertSql;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final DBSQLExceptionClassifier classifier = new DBSQLExceptionClassifier();
+    private final AtomicInteger size = new AtomicInteger();
+    private int flushSize = 500;
+    private long flushLatencyMillis = 50;
+    private volatile boolean running = false;
+    private volatile Thread writer = null;
+
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong rowsFailed = new AtomicLong();
+    private final AtomicLong rowsRefused = new AtomicLong();
+    private final AtomicLong rowsRejected = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+
+    public DBWriteBehindQueue(DBPool pool, String insertSql, int capacity) {
+        if (pool == null) throw new IllegalArgumentException("Pool cannot be null");
+        if (insertSql == null) throw new IllegalArgumentException("SQL cannot be null");
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        this.pool = pool;
+        this.insertSql = insertSql;
+        this.capacity = capacity;
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    public void setFlushSize(int flushSize) {
+        if (flushSize < 1) throw new IllegalArgumentException("flushSize must be at least 1");
+        this.flushSize = flushSize;
+    }
+
+    public long getFlushLatencyMillis() {
+        return flushLatencyMillis;
+    }
+
+    public void setFlushLatencyMillis(long flushLatencyMillis) {
+        if (flushLatencyMillis < 1) throw new IllegalArgumentException("flushLatencyMillis must be at least 1");
+        this.flushLatencyMillis = flushLatencyMillis;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "DBWriteBehind-" + Integer.toHexString(System.identityHashCode(this)));
+        t.setDaemon(true);
+        writer = t;
+        t.start();
+    }
+
+    /**
+     * Stops accepting rows and waits for the writer to flush what is already queued.
+     *
+     * @return <code>true</code> if every queued row was written before the timeout
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = writer;
+        }
+        if (t == null) return size.get() == 0;
+        LockSupport.unpark(t);
+        t.join(timeoutMillis);
+        return !t.isAlive();
+    }
+
+    /**
+     * Queues a row without waiting.
+     *
+     * @return <code>false</code> if the queue is full or stopped and the row was dropped
+     */
+    public boolean offer(Object[] row) {
+        if (row == null) throw new IllegalArgumentException("Row cannot be null");
+        if (!reserve()) {
+            rowsRejected.incrementAndGet();
+            return false;
+        }
+        enqueue(new Pending(row, null));
+        return true;
+    }
+
+    /**
+     * Queues a row, waiting up to <code>timeoutMillis</code> for space.
+     *
+     * @return a future that completes when the row's batch is committed, or completes
+     *         exceptionally with the <code>SQLException</code> that failed the batch
+     * @throws RejectedExecutionException if the queue stays full or is stopped
+     */
+    public CompletableFuture<Void> submit(Object[] row, long timeoutMillis) {
+        if (row == null) throw new IllegalArgumentException("Row cannot be null");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long backoff = 1000L;
+        while (!reserve()) {
+            long remaining = deadline - System.nanoTime();
+            if (!running || remaining <= 0) {
+                rowsRejected.incrementAndGet();
+                throw new RejectedExecutionException("Write-behind queue full for: " + insertSql);
+            }
+            LockSupport.parkNanos(this, Math.min(backoff, remaining));
+            backoff = Math.min(backoff * 2, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        enqueue(new Pending(row, future));
+        return future;
+    }
+
+    public int getQueuedRows() {
+        return size.get();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    public long getRowsFailed() {
+        return rowsFailed.get();
+    }
+
+    /**
+     * The rows the database refused on their own, left out of an otherwise committed
+     * batch. They are not counted by <code>getRowsFailed</code>.
+     */
+    public long getRowsRefused() {
+        return rowsRefused.get();
+    }
+
+    public long getRowsRejected() {
+        return rowsRejected.get();
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten.get();
+    }
+
+    private boolean reserve() {
+        while (running) {
+            int current = size.get();
+            if (current >= capacity) return false;
+            if (size.compareAndSet(current, current + 1)) return true;
+        }
+        return false;
+    }
+
+    private void enqueue(Pending pending) {
+        queue.add(pending);
+        if (size.get() >= flushSize) {
+            Thread t = writer;
+            if (t != null) LockSupport.unpark(t);
+        }
+    }
+
+    private void writeLoop() {
+        long latencyNanos = TimeUnit.MILLISECONDS.toNanos(flushLatencyMillis);
+        List<Pending> batch = new ArrayList<>(flushSize);
+        while (true) {
+            boolean stopping = !running;
+            if (!stopping && size.get() < flushSize) {
+                LockSupport.parkNanos(this, latencyNanos);
+            }
+            try {
+                Pending pending;
+                while ((pending = queue.poll()) != null) {
+                    size.decrementAndGet();
+                    batch.add(pending);
+                    if (batch.size() >= flushSize) {
+                        flush(batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                    batch.clear();
+                }
+            } catch (RuntimeException e) {
+                // the writer must outlive any one batch, or the queue fills and submit never returns
+                log.error("Write-behind writer failed on a batch of " + batch.size() + " rows for: " + insertSql, e);
+                for (Pending failed : batch) {
+                    if (failed.future != null) failed.future.completeExceptionally(e);
+                }
+                batch.clear();
+            }
+            if (stopping && size.get() == 0) break;
+        }
+        log.info("Write-behind writer stopped after " + rowsWritten.get() + " rows in "
+                + batchesWritten.get() + " batches for: " + insertSql);
+    }
+
+    private void flush(List<Pending> batch) {
+        try {
+            write(batch);
+        } catch (SQLException | RuntimeException e) {
+            if (isRefusedData(e) && batch.size() > 1) {
+                // split the batch so one bad row does not fail the good ones with it
+                if (log.isDebugEnabled()) log.debug("Splitting refused write-behind batch of " + batch.size() + " rows: " + e);
+                int half = batch.size() / 2;
+                flush(batch.subList(0, half));
+                flush(batch.subList(half, batch.size()));
+                return;
+            }
+            if (isRefusedData(e)) {
+                rowsRefused.incrementAndGet();
+                log.error("Write-behind row refused for: " + insertSql + ", row " + Arrays.toString(batch.get(0).row), e);
+            } else {
+                rowsFailed.addAndGet(batch.size());
+                log.error("Write-behind batch of " + batch.size() + " rows failed for: " + insertSql, e);
+            }
+            for (Pending pending : batch) {
+                if (pending.future != null) pending.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Whether the database refused the rows themselves, rather than failing for a reason
+     * that would fail any row, such as a lost connection, a timeout or bad SQL.
+     */
+    private boolean isRefusedData(Exception e) {
+        if (e instanceof SQLIntegrityConstraintViolationException || e instanceof SQLDataException) return true;
+        if (!(e instanceof BatchUpdateException)) return false;
+        String state = ((SQLException) e).getSQLState();
+        // syntax errors and missing permissions fail every row
+        if (state != null && (state.startsWith("42") || state.startsWith("28"))) return false;
+        return classifier.classify((SQLException) e) == DBSQLExceptionClassifier.Category.NON_RETRYABLE;
+    }
+
+    /**
+     * Writes the rows as one batch in one transaction and completes their futures.
+     *
+     * @throws SQLException if the batch failed; it is then rolled back
+     */
+    private void write(List<Pending> batch) throws SQLException {
+        DBConnection connection = null;
+        PreparedStatement stmt = null;
+        DBStatementEvent event = new DBStatementEvent();
+        boolean succeeded = false;
+        try {
+            connection = DBPools.borrow(pool);
+            connection.setAutoCommit(false);
+            stmt = connection.prepareStatement(insertSql);
+            event.begin();
+            stmt.setQueryTimeout(AppEnv.QUERY_TIMEOUT_IN_SECS);
+            for (Pending pending : batch) {
+                for (int i = 0; i < pending.row.length; i++) {
+                    stmt.setObject(i + 1, pending.row[i]);
+                }
+                stmt.addBatch();
+            }
+            long executed = System.nanoTime();
+            boolean ran = false;
+            DBConnectionWatchdog.Call call = DBConnectionWatchdog.getInstance().watch(connection, "writeBehindBatch", AppEnv.QUERY_TIMEOUT_IN_SECS);
+            try {
+                stmt.executeBatch();
+                ran = true;
+            } finally {
+                call.close();
+                if (DBWorkloadCapture.isCapturing()) {
+                    List<Object[]> rows = new ArrayList<>(batch.size());
+                    for (Pending pending : batch) {
+                        rows.add(pending.row);
+                    }
+                    DBWorkloadCapture.batch(connection, stmt, insertSql, rows, executed, ran);
+                }
+            }
+            connection.commit();
+            succeeded = true;
+            rowsWritten.addAndGet(batch.size());
+            batchesWritten.incrementAndGet();
+            for (Pending pending : batch) {
+                if (pending.future != null) pending.future.complete(null);
+            }
+        } catch (SQLException | RuntimeException e) {
+            if (connection != null) {
+                try {
+                    connection.rollback();
+                } catch (SQLException sqle) {
+                    log.error("Could not roll back write-behind batch.", sqle);
+                    connection.setBadConnection(true);
+                }
+            }
+            throw e;
+        } finally {
+            if (stmt != null) {
+                event.end("writeBehindBatch", insertSql, connection, batch.size(), succeeded);
+                try {
+                    stmt.close();
+                } catch (SQLException sqle) {
+                    log.error("Could not close write-behind statement.", sqle);
+                }
+            }
+            if (connection != null) DBPools.release(pool, connection);
+        }
+    }
+
+    private static class Pending {
+        final Object[] row;
+        final CompletableFuture<Void> future;
+
+        Pending(Object[] row, CompletableFuture<Void> future) {
+            this.row = row;
+            this.future = future;
+        }
+    }
+}
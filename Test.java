@@ -2,6 +2,8 @@
 package foundation.db;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.Map;
 import java.util.Properties;
@@ -34,6 +36,13 @@ public class DBConnection implements Connection {
     private boolean badConnectionFlag = false;
     private long intantiationTime = System.currentTimeMillis();
     protected long sqlsExecuted = 0;
+    private int appliedNetworkTimeout = 0;
+    private long captureSerial = 0;
+    private int captureConnectionId = 0;
+    private long borrowedAt = 0;
+    private final Object trackingLock = new Object();
+    private volatile List<Statement> trackedStatements = null;
+    private boolean trackedCancelled = false;
 
     public DBConnection(DBPool pool, Connection connection) {
         if (connection == null) throw new IllegalArgumentException("Connection cannot be null");
@@ -59,7 +68,11 @@ public class DBConnection implements Connection {
     }
 
     protected String fetchSpid() {
-        return fetchSpid(connection);
+        DBConnectionEvent event = new DBConnectionEvent();
+        event.begin();
+        String fetched = fetchSpid(connection);
+        event.end("fetchSpid", fetched, fetched != null);
+        return fetched;
     }
     
     private static String fetchSpid(Connection connection) {
@@ -163,8 +176,19 @@ public class DBConnection implements Connection {
      * @see #setAutoCommit
      */
     public void commit() throws SQLException {
-        connection.commit();
-        connection.setAutoCommit(true);
+        DBConnectionEvent event = new DBConnectionEvent();
+        event.begin();
+        boolean succeeded = false;
+        DBConnectionWatchdog.Call call = DBConnectionWatchdog.getInstance().watch(this, "commit", AppEnv.QUERY_TIMEOUT_IN_SECS);
+        try {
+            connection.commit();
+            connection.setAutoCommit(true);
+            succeeded = true;
+            DBWorkloadCapture.transaction(this, DBWorkloadCapture.COMMIT);
+        } finally {
+            call.close();
+            event.end("commit", spid, succeeded);
+        }
     }
 
     /**
@@ -178,8 +202,19 @@ public class DBConnection implements Connection {
      * @see #setAutoCommit
      */
     public void rollback() throws SQLException {
-        connection.rollback();
-        connection.setAutoCommit(true);
+        DBConnectionEvent event = new DBConnectionEvent();
+        event.begin();
+        boolean succeeded = false;
+        DBConnectionWatchdog.Call call = DBConnectionWatchdog.getInstance().watch(this, "rollback", AppEnv.QUERY_TIMEOUT_IN_SECS);
+        try {
+            connection.rollback();
+            connection.setAutoCommit(true);
+            succeeded = true;
+            DBWorkloadCapture.transaction(this, DBWorkloadCapture.ROLLBACK);
+        } finally {
+            call.close();
+            event.end("rollback", spid, succeeded);
+        }
     }
 
     /**
@@ -213,8 +248,17 @@ public class DBConnection implements Connection {
      * @throws java.sql.SQLException if a database access error occurs
      */
     public boolean isClosed() throws SQLException {
+        DBConnectionEvent event = new DBConnectionEvent();
+        event.begin();
+        boolean succeeded = false;
         long duration = System.currentTimeMillis();
-        boolean returnValue = connection.isClosed();
+        boolean returnValue;
+        try {
+            returnValue = connection.isClosed();
+            succeeded = true;
+        } finally {
+            event.end("isClosed", spid, succeeded);
+        }
         duration = System.currentTimeMillis() - duration;
         if (duration > 3000) {
             log.error(duration + " ms to check isClosed on connection with SPID " + this.getSpid() + "");
@@ -313,6 +357,7 @@ public class DBConnection implements Connection {
      */
     public void setAutoCommit(boolean autoCommit) throws SQLException {
         connection.setAutoCommit(autoCommit);
+        if (!autoCommit) DBWorkloadCapture.transaction(this, DBWorkloadCapture.BEGIN);
     }
 
     /**
@@ -369,9 +414,11 @@ public class DBConnection implements Connection {
      * @return a <code>DatabaseMetaData</code> object for this
      *         <code>Connection</code> object
      * @throws java.sql.SQLException if a database access error occurs
+     * @see DBMetaDataCache
      */
     public DatabaseMetaData getMetaData() throws SQLException {
-        return connection.getMetaData();
+        if (pool == null) return connection.getMetaData();
+        return new DBDatabaseMetaData(DBMetaDataCache.forPool(pool), connection.getMetaData(), this);
     }
 
     /**
@@ -445,8 +492,16 @@ public class DBConnection implements Connection {
      * @since 1.4
      */
     public void rollback(Savepoint savepoint) throws SQLException {
-        connection.rollback(savepoint);
-        connection.setAutoCommit(true);
+        DBConnectionEvent event = new DBConnectionEvent();
+        event.begin();
+        boolean succeeded = false;
+        try {
+            connection.rollback(savepoint);
+            connection.setAutoCommit(true);
+            succeeded = true;
+        } finally {
+            event.end("rollbackToSavepoint", spid, succeeded);
+        }
     }
 
     /**
@@ -467,7 +522,7 @@ public class DBConnection implements Connection {
     public Statement createStatement() throws SQLException {
         Statement stmt = connection.createStatement();
         stmt.setQueryTimeout(AppEnv.QUERY_TIMEOUT_IN_SECS);
-        return new DBStatement(this, stmt);
+        return track(new DBStatement(this, stmt));
     }
 
     /**
@@ -495,7 +550,7 @@ public class DBConnection implements Connection {
     public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
         Statement stmt = connection.createStatement(resultSetType, resultSetConcurrency);
         stmt.setQueryTimeout(AppEnv.QUERY_TIMEOUT_IN_SECS);
-        return new DBStatement(this, stmt);
+        return track(new DBStatement(this, stmt));
     }
 
     /**
@@ -534,7 +589,7 @@ public class DBConnection implements Connection {
             throws SQLException {
         Statement stmt = connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
         stmt.setQueryTimeout(AppEnv.QUERY_TIMEOUT_IN_SECS);
-        return new DBStatement(this, stmt);
+        return track(new DBStatement(this, stmt));
     }
 
     /**
@@ -614,7 +669,7 @@ public class DBConnection implements Connection {
      * @throws java.sql.SQLException if a database access error occurs
      */
     public CallableStatement prepareCall(String sql) throws SQLException {
-        return new DBCallableStatement(this, connection.prepareCall(sql), sql);
+        return track(new DBCallableStatement(this, connection.prepareCall(sql), sql));
     }
 
     /**
@@ -645,10 +700,10 @@ public class DBConnection implements Connection {
                                          int resultSetType,
                                          int resultSetConcurrency)
             throws SQLException {
-        return new DBCallableStatement(
+        return track(new DBCallableStatement(
                 this,
                 connection.prepareCall(sql, resultSetType, resultSetConcurrency),
-                sql);
+                sql));
     }
 
     /**
@@ -688,10 +743,10 @@ public class DBConnection implements Connection {
                                          int resultSetConcurrency,
                                          int resultSetHoldability)
             throws SQLException {
-        return new DBCallableStatement(
+        return track(new DBCallableStatement(
                 this,
                 connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability),
-                sql);
+                sql));
     }
 
     /**
@@ -724,7 +779,7 @@ public class DBConnection implements Connection {
      * @throws java.sql.SQLException if a database access error occurs
      */
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return new DBPreparedStatement(this, connection.prepareStatement(sql), sql);
+        return track(new DBPreparedStatement(this, connection.prepareStatement(sql), sql));
     }
 
     /**
@@ -764,7 +819,7 @@ public class DBConnection implements Connection {
      * @since 1.4
      */
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
-        return new DBPreparedStatement(this, connection.prepareStatement(sql, autoGeneratedKeys), sql);
+        return track(new DBPreparedStatement(this, connection.prepareStatement(sql, autoGeneratedKeys), sql));
     }
 
     /**
@@ -796,8 +851,8 @@ public class DBConnection implements Connection {
                                               int resultSetType,
                                               int resultSetConcurrency)
             throws SQLException {
-        return new DBPreparedStatement(this,
-                connection.prepareStatement(sql, resultSetType, resultSetConcurrency), sql);
+        return track(new DBPreparedStatement(this,
+                connection.prepareStatement(sql, resultSetType, resultSetConcurrency), sql));
     }
 
     /**
@@ -840,9 +895,9 @@ public class DBConnection implements Connection {
                                               int resultSetConcurrency,
                                               int resultSetHoldability)
             throws SQLException {
-        return new DBPreparedStatement(this,
+        return track(new DBPreparedStatement(this,
                 connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability),
-                sql);
+                sql));
     }
 
     /**
@@ -884,9 +939,9 @@ public class DBConnection implements Connection {
      * @since 1.4
      */
     public PreparedStatement prepareStatement(String sql, int columnIndexes[]) throws SQLException {
-        return new DBPreparedStatement(this,
+        return track(new DBPreparedStatement(this,
                 connection.prepareStatement(sql, columnIndexes),
-                sql);
+                sql));
     }
 
     /**
@@ -944,7 +999,7 @@ public class DBConnection implements Connection {
      * @since 1.4
      */
     public PreparedStatement prepareStatement(String sql, String columnNames[]) throws SQLException {
-        return new DBPreparedStatement(this, connection.prepareStatement(sql, columnNames), sql);
+        return track(new DBPreparedStatement(this, connection.prepareStatement(sql, columnNames), sql));
     }
 
     public void setBadConnection(boolean flag) {
@@ -954,6 +1009,98 @@ public class DBConnection implements Connection {
     public boolean isBadConnectionFlag() {
         return badConnectionFlag;
     }
+
+    /**
+     * The network timeout last set through this wrapper, 0 if none, or -1 if the driver
+     * does not support one, in which case <code>DBConnectionWatchdog</code> stops trying.
+     */
+    int getAppliedNetworkTimeout() {
+        return appliedNetworkTimeout;
+    }
+
+    void setAppliedNetworkTimeout(int appliedNetworkTimeout) {
+        this.appliedNetworkTimeout = appliedNetworkTimeout;
+    }
+
+    /**
+     * When <code>DBPools</code> last borrowed this connection, kept apart from
+     * <code>lastUsed</code>, which belongs to the pool's idle bookkeeping.
+     */
+    long getBorrowedAt() {
+        return borrowedAt;
+    }
+
+    void setBorrowedAt(long borrowedAt) {
+        this.borrowedAt = borrowedAt;
+    }
+
+    /**
+     * The number <code>DBWorkloadCapture</code> gave this connection in the capture with
+     * the given serial, or 0 if it has none there.
+     */
+    int getCaptureConnectionId(long serial) {
+        return captureSerial == serial ? captureConnectionId : 0;
+    }
+
+    void setCaptureConnectionId(long serial, int id) {
+        this.captureSerial = serial;
+        this.captureConnectionId = id;
+    }
+
+    /**
+     * Starts remembering the statements created on this connection, so that another
+     * thread can stop them with <code>cancelTrackedStatements</code>. Used by
+     * <code>DBFanOutExecutor</code> to cancel sibling queries that are already running.
+     */
+    void trackStatements() {
+        synchronized (trackingLock) {
+            trackedStatements = new ArrayList<>();
+            trackedCancelled = false;
+        }
+    }
+
+    /**
+     * Stops tracking. Once this returns, <code>cancelTrackedStatements</code> no longer
+     * touches this connection, so it can safely go back to the pool.
+     */
+    void untrackStatements() {
+        synchronized (trackingLock) {
+            trackedStatements = null;
+            trackedCancelled = false;
+        }
+    }
+
+    /**
+     * Cancels the tracked statements. Until tracking stops, creating another statement on
+     * this connection fails, so a statement created just after the cancel cannot run on.
+     */
+    void cancelTrackedStatements() {
+        synchronized (trackingLock) {
+            if (trackedStatements == null) return;
+            trackedCancelled = true;
+            for (Statement stmt : trackedStatements) {
+                try {
+                    stmt.cancel();
+                } catch (SQLException e) {
+                    log.debug("Could not cancel statement on connection with SPID " + spid + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private <S extends Statement> S track(S stmt) throws SQLException {
+        if (trackedStatements != null) {
+            synchronized (trackingLock) {
+                if (trackedCancelled) {
+                    stmt.close();
+                    throw new SQLException("Statements on connection with SPID " + spid + " were cancelled", "HY008");
+                }
+                if (trackedStatements != null) trackedStatements.add(stmt);
+            }
+        }
+        return stmt;
+    }
+
     public long getIntantiationTime() {
         return intantiationTime;
     }
@@ -987,7 +1134,15 @@ public class DBConnection implements Connection {
     }
 
     public boolean isValid(int timeout) throws SQLException {
-        return connection.isValid(timeout);
+        DBConnectionEvent event = new DBConnectionEvent();
+        event.begin();
+        boolean valid = false;
+        try {
+            valid = connection.isValid(timeout);
+            return valid;
+        } finally {
+            event.end("isValid", spid, valid);
+        }
     }
 
     public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
@@ -1040,6 +1195,7 @@ public class DBConnection implements Connection {
     // Added for JDK 7/JDBC 4.1
     public void setNetworkTimeout(Executor executor, int i) throws SQLException {
         connection.setNetworkTimeout(executor, i);
+        appliedNetworkTimeout = i;
     }
 
     // Added for JDK 7/JDBC 4.1